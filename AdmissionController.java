@@ -0,0 +1,157 @@
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many commands of each class run at once in this JVM, so an
+ * overload is turned away at the door instead of queueing on database locks.
+ *
+ * Searches and reservation listings go through the search gate; book, pay and
+ * cancel through the booking gate, so a flood of bookings cannot starve reads.
+ * A command that finds its gate full waits up to the gate's queue timeout, and
+ * is rejected at once if too many are already waiting.
+ *
+ * Each gate adapts its limit to the latency it observes: it shrinks the limit
+ * when commands take longer than the target and grows it slowly while they
+ * are fast and the limit is what holds them back (AIMD).
+ */
+public class AdmissionController
+{
+  /** Concurrency limit and wait queue for one class of commands. */
+  public static class Gate
+  {
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final long targetNanos;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long lastDecrease;
+    private long rejected;
+
+    public Gate(int initialLimit, int minLimit, int maxLimit, int maxQueue, long queueTimeoutMillis, long targetMillis)
+    {
+      this.minLimit = Math.max(1, minLimit);
+      this.maxLimit = Math.max(this.minLimit, maxLimit);
+      this.maxQueue = maxQueue;
+      this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+      this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+      this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    // take a slot, waiting up to the queue timeout; false if the command should be turned away
+    public synchronized boolean acquire() {
+      if (waiting == 0 && inFlight < (int) limit) {
+        inFlight++;
+        return true;
+      }
+      if (waiting >= maxQueue) {
+        rejected++;
+        return false;
+      }
+      waiting++;
+      try {
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        while (inFlight >= (int) limit) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            rejected++;
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rejected++;
+        return false;
+      } finally {
+        waiting--;
+      }
+    }
+
+    // give the slot back, with the time the command took since acquire returned
+    public synchronized void release(long elapsedNanos) {
+      boolean atLimit = inFlight >= (int) limit;
+      inFlight--;
+      long now = System.nanoTime();
+      if (elapsedNanos > targetNanos) {
+        // back off at most once per target interval, the commands still running started under the old limit
+        if (now - lastDecrease > targetNanos) {
+          limit = Math.max(minLimit, limit * BACKOFF);
+          lastDecrease = now;
+        }
+      } else if (atLimit) {
+        limit = Math.min(maxLimit, limit + 1.0 / limit);
+      }
+      notifyAll();
+    }
+
+    public synchronized int limit() {
+      return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+      return inFlight;
+    }
+
+    public synchronized long rejected() {
+      return rejected;
+    }
+  }
+
+  private final Gate search;
+  private final Gate booking;
+  private final FlightLocks flights;
+
+  public AdmissionController(Gate search, Gate booking, FlightLocks flights)
+  {
+    this.search = search;
+    this.booking = booking;
+    this.flights = flights;
+  }
+
+  // read the flightservice.admission.* settings, null if admission control is off
+  public static AdmissionController fromConfig(Properties configProps) {
+    if (!Boolean.parseBoolean(configProps.getProperty("flightservice.admission", "false").trim())) {
+      return null;
+    }
+    Gate search = gate(configProps, "flightservice.admission.search.", 16, 64, 64, 250, 200);
+    Gate booking = gate(configProps, "flightservice.admission.booking.", 8, 32, 128, 1000, 250);
+    long flightTimeout = setting(configProps, "flightservice.admission.flight_queue_timeout_ms", 1000);
+    int flightQueue = (int) setting(configProps, "flightservice.admission.flight_queue", 8);
+    return new AdmissionController(search, booking, new FlightLocks(flightTimeout, flightQueue));
+  }
+
+  private static Gate gate(Properties configProps, String prefix, int limit, int maxLimit, int maxQueue,
+                           long queueTimeoutMillis, long targetMillis) {
+    return new Gate((int) setting(configProps, prefix + "limit", limit),
+                    (int) setting(configProps, prefix + "min_limit", 1),
+                    (int) setting(configProps, prefix + "max_limit", maxLimit),
+                    (int) setting(configProps, prefix + "queue", maxQueue),
+                    setting(configProps, prefix + "queue_timeout_ms", queueTimeoutMillis),
+                    setting(configProps, prefix + "target_ms", targetMillis));
+  }
+
+  private static long setting(Properties configProps, String name, long defaultValue) {
+    return Long.parseLong(configProps.getProperty(name, Long.toString(defaultValue)).trim());
+  }
+
+  public Gate search() {
+    return search;
+  }
+
+  public Gate booking() {
+    return booking;
+  }
+
+  public FlightLocks flights() {
+    return flights;
+  }
+}
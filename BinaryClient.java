@@ -0,0 +1,158 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Blocking client for {@link BinaryServer}, one request at a time. Flights in
+ * search and reservation replies are kept in a local map, and city and carrier
+ * names are fetched once with {@link #dictionary()}.
+ */
+public class BinaryClient
+{
+  private final SocketChannel channel;
+  private final ByteBuffer request = ByteBuffer.allocateDirect(8 * 1024);
+  private ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+
+  private final HashMap<Integer, Flight> flights = new HashMap<Integer, Flight>();
+  private final List<String> cities = new ArrayList<String>();
+  private final List<String> carriers = new ArrayList<String>();
+
+  public BinaryClient(String host, int port) throws IOException
+  {
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  public Reply create(String username, String password, int initAmount) throws IOException {
+    start(BinaryProtocol.CREATE);
+    BinaryProtocol.putString(request, username);
+    BinaryProtocol.putString(request, password);
+    request.putInt(initAmount);
+    return call(BinaryProtocol.CREATE);
+  }
+
+  public Reply login(String username, String password) throws IOException {
+    start(BinaryProtocol.LOGIN);
+    BinaryProtocol.putString(request, username);
+    BinaryProtocol.putString(request, password);
+    return call(BinaryProtocol.LOGIN);
+  }
+
+  public Reply search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                      int numberOfItineraries) throws IOException {
+    start(BinaryProtocol.SEARCH);
+    BinaryProtocol.putString(request, originCity);
+    BinaryProtocol.putString(request, destinationCity);
+    request.put((byte) (directFlight ? 1 : 0));
+    request.putInt(dayOfMonth);
+    request.putInt(numberOfItineraries);
+    return call(BinaryProtocol.SEARCH);
+  }
+
+  public Reply book(int itineraryId) throws IOException {
+    start(BinaryProtocol.BOOK);
+    request.putInt(itineraryId);
+    return call(BinaryProtocol.BOOK);
+  }
+
+  public Reply pay(int reservationId) throws IOException {
+    start(BinaryProtocol.PAY);
+    request.putInt(reservationId);
+    return call(BinaryProtocol.PAY);
+  }
+
+  public Reply reservations() throws IOException {
+    start(BinaryProtocol.RESERVATIONS);
+    return call(BinaryProtocol.RESERVATIONS);
+  }
+
+  public Reply cancel(int reservationId) throws IOException {
+    start(BinaryProtocol.CANCEL);
+    request.putInt(reservationId);
+    return call(BinaryProtocol.CANCEL);
+  }
+
+  // fetch city and carrier names, needed again only if an id beyond them shows up
+  public Reply dictionary() throws IOException {
+    cities.clear();
+    carriers.clear();
+    start(BinaryProtocol.DICTIONARY);
+    return call(BinaryProtocol.DICTIONARY);
+  }
+
+  // resume the session with the given token, or pass "" to keep this one; returns the session's token
+  public String session(String token) throws IOException {
+    start(BinaryProtocol.SESSION);
+    BinaryProtocol.putString(request, token);
+    String[] current = new String[1];
+    exchange();
+    BinaryProtocol.decode(BinaryProtocol.SESSION, response, flights, cities, carriers, current);
+    return current[0];
+  }
+
+  public void quit() throws IOException {
+    start(BinaryProtocol.QUIT);
+    call(BinaryProtocol.QUIT);
+    channel.close();
+  }
+
+  public Flight flight(int fid) {
+    return flights.get(fid);
+  }
+
+  public String cityName(int id) {
+    return id < cities.size() ? cities.get(id) : null;
+  }
+
+  public String carrierName(int id) {
+    return id < carriers.size() ? carriers.get(id) : null;
+  }
+
+  private void start(byte opcode) {
+    request.clear();
+    request.putInt(0);
+    request.put(opcode);
+  }
+
+  private Reply call(byte opcode) throws IOException {
+    exchange();
+    return BinaryProtocol.decode(opcode, response, flights, cities, carriers, null);
+  }
+
+  // send the request and read the whole response body into response
+  private void exchange() throws IOException {
+    request.putInt(0, request.position() - 4);
+    request.flip();
+    while (request.hasRemaining()) {
+      channel.write(request);
+    }
+    response.clear();
+    response.limit(4);
+    readFully();
+    int length = response.getInt(0);
+    if (length > response.capacity()) {
+      response = ByteBuffer.allocateDirect(Integer.highestOneBit(length) << 1);
+    }
+    response.clear();
+    response.limit(length);
+    readFully();
+    response.flip();
+  }
+
+  private void readFully() throws IOException {
+    while (response.hasRemaining()) {
+      if (channel.read(response) < 0) {
+        throw new EOFException("server closed the connection");
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,247 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Length-prefixed binary form of the FlightService commands.
+ *
+ * Request:  [int length][byte opcode][arguments]
+ * Response: [int length][byte status][byte n][n ints][payload]
+ *
+ * length counts the bytes after it. The ints are {@link Reply#values}; the
+ * payload is only there for SEARCH, RESERVATIONS, DICTIONARY and SESSION when
+ * the status is OK. Strings are [unsigned short length][utf-8 bytes].
+ *
+ * Arguments, in order:
+ *   CREATE       username, password, int initial amount
+ *   LOGIN        username, password
+ *   SEARCH       origin city, destination city, byte direct, int day, int count
+ *   BOOK         int itinerary id
+ *   PAY          int reservation id
+ *   RESERVATIONS (none)
+ *   CANCEL       int reservation id
+ *   DICTIONARY   (none)
+ *   SESSION      token to resume, or "" to keep the current session
+ *   QUIT         (none)
+ *
+ * Payloads:
+ *   SEARCH       int n, n times: int fid1, int fid2, int total time, byte sold out, flights
+ *   RESERVATIONS int n, n times: int reservation id, byte paid, flights
+ *   DICTIONARY   int n, n city names, int m, m carrier names, indexed by id
+ *   SESSION      the session's token
+ * where flights is a byte count followed by that many flights, each nine ints:
+ * fid, day, carrier id, flight number, origin id, destination id, time,
+ * capacity, price. City and carrier ids index the DICTIONARY lists.
+ */
+public class BinaryProtocol
+{
+  public static final byte CREATE = 1;
+  public static final byte LOGIN = 2;
+  public static final byte SEARCH = 3;
+  public static final byte BOOK = 4;
+  public static final byte PAY = 5;
+  public static final byte RESERVATIONS = 6;
+  public static final byte CANCEL = 7;
+  public static final byte DICTIONARY = 8;
+  public static final byte SESSION = 9;
+  public static final byte QUIT = 10;
+
+  /**
+   * Run one request frame, without its length, against the session and return
+   * the outcome. A truncated or unknown request is BAD_REQUEST.
+   */
+  public static Reply execute(Query q, ByteBuffer request)
+  {
+    try {
+      byte opcode = request.get();
+      if (opcode == CREATE) {
+        return q.createCustomer(getString(request), getString(request), request.getInt());
+      } else if (opcode == LOGIN) {
+        return q.login(getString(request), getString(request));
+      } else if (opcode == SEARCH) {
+        String origin = getString(request);
+        String dest = getString(request);
+        boolean direct = request.get() != 0;
+        int day = request.getInt();
+        return q.search(origin, dest, direct, day, request.getInt());
+      } else if (opcode == BOOK) {
+        return q.book(request.getInt());
+      } else if (opcode == PAY) {
+        return q.pay(request.getInt());
+      } else if (opcode == RESERVATIONS) {
+        return q.reservations();
+      } else if (opcode == CANCEL) {
+        return q.cancel(request.getInt());
+      } else if (opcode == DICTIONARY || opcode == QUIT) {
+        return Reply.of(Reply.OK);
+      } else if (opcode == SESSION) {
+        String token = getString(request);
+        if (!token.isEmpty()) {
+          q.attachSession(token);
+        }
+        return Reply.of(Reply.OK);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      // fall through
+    }
+    return Reply.of(Reply.BAD_REQUEST);
+  }
+
+  /**
+   * Append the length-prefixed response to a request with the given opcode.
+   * Throws BufferOverflowException if it does not fit; nothing about the
+   * session changes, so the caller can retry with a bigger buffer.
+   */
+  public static void encode(byte opcode, Reply reply, Query q, ByteBuffer out)
+  {
+    int start = out.position();
+    out.putInt(0);
+    out.put(reply.status);
+    out.put((byte) reply.values.length);
+    for (int value : reply.values) {
+      out.putInt(value);
+    }
+    if (reply.ok()) {
+      if (opcode == SEARCH) {
+        out.putInt(reply.itineraries.size());
+        for (Itinerary itinerary : reply.itineraries) {
+          out.putInt(itinerary.fid1);
+          out.putInt(itinerary.fid2);
+          out.putInt(itinerary.totalTime);
+          out.put((byte) (itinerary.soldOut ? 1 : 0));
+          putFlights(out, q, itinerary.fid1, itinerary.fid2);
+        }
+      } else if (opcode == RESERVATIONS) {
+        out.putInt(reply.reservations.size());
+        for (Reservation reservation : reply.reservations) {
+          out.putInt(reservation.reservationId);
+          out.put((byte) (reservation.paid ? 1 : 0));
+          putFlights(out, q, reservation.fid1, reservation.fid2);
+        }
+      } else if (opcode == DICTIONARY) {
+        FlightDictionary dictionary = Query.dictionary();
+        int cities = dictionary.cityCount();
+        out.putInt(cities);
+        for (int id = 0; id < cities; id++) {
+          putString(out, dictionary.cityName(id));
+        }
+        int carriers = dictionary.carrierCount();
+        out.putInt(carriers);
+        for (int id = 0; id < carriers; id++) {
+          putString(out, dictionary.carrierName(id));
+        }
+      } else if (opcode == SESSION) {
+        putString(out, q.sessionToken());
+      }
+    }
+    out.putInt(start, out.position() - start - 4);
+  }
+
+  // the flights with the given fids, skipping 0 (no second leg) and unknown fids
+  private static void putFlights(ByteBuffer out, Query q, int fid1, int fid2) {
+    Flight first = q.getFlight(fid1);
+    Flight second = q.getFlight(fid2);
+    out.put((byte) ((first == null ? 0 : 1) + (second == null ? 0 : 1)));
+    putFlight(out, first);
+    putFlight(out, second);
+  }
+
+  private static void putFlight(ByteBuffer out, Flight flight) {
+    if (flight == null) {
+      return;
+    }
+    out.putInt(flight.fid);
+    out.putInt(flight.dayOfMonth);
+    out.putInt(flight.carrierId);
+    out.putInt(flight.flightNum);
+    out.putInt(flight.originCity);
+    out.putInt(flight.destCity);
+    out.putInt(flight.time);
+    out.putInt(flight.capacity);
+    out.putInt(flight.price);
+  }
+
+  /**
+   * Read a response body, without its length, to a request with the given
+   * opcode. Flights in the payload are added to {@code flights}; DICTIONARY
+   * names go to {@code cities} and {@code carriers}, SESSION's token to
+   * {@code token}[0]. Any of them may be null if the opcode does not use it.
+   */
+  public static Reply decode(byte opcode, ByteBuffer in, Map<Integer, Flight> flights,
+                             List<String> cities, List<String> carriers, String[] token)
+  {
+    byte status = in.get();
+    int[] values = new int[in.get()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.getInt();
+    }
+    if (status != Reply.OK) {
+      return Reply.of(status, values);
+    }
+    if (opcode == SEARCH) {
+      int count = in.getInt();
+      List<Itinerary> itineraries = new ArrayList<Itinerary>(count);
+      for (int i = 0; i < count; i++) {
+        itineraries.add(new Itinerary(in.getInt(), in.getInt(), in.getInt(), in.get() != 0));
+        getFlights(in, flights);
+      }
+      return Reply.ofItineraries(itineraries);
+    } else if (opcode == RESERVATIONS) {
+      int count = in.getInt();
+      List<Reservation> reservations = new ArrayList<Reservation>(count);
+      for (int i = 0; i < count; i++) {
+        int reservationId = in.getInt();
+        boolean paid = in.get() != 0;
+        int[] fids = getFlights(in, flights);
+        reservations.add(new Reservation(reservationId, paid, fids[0], fids[1]));
+      }
+      return Reply.ofReservations(reservations);
+    } else if (opcode == DICTIONARY) {
+      getNames(in, cities);
+      getNames(in, carriers);
+    } else if (opcode == SESSION) {
+      token[0] = getString(in);
+    }
+    return Reply.of(status, values);
+  }
+
+  // read a flights list, returning its fids with 0 for a missing second leg
+  private static int[] getFlights(ByteBuffer in, Map<Integer, Flight> flights) {
+    int[] fids = new int[2];
+    int count = in.get();
+    for (int i = 0; i < count; i++) {
+      Flight flight = new Flight(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+                                 in.getInt(), in.getInt(), in.getInt(), in.getInt());
+      if (i < fids.length) {
+        fids[i] = flight.fid;
+      }
+      flights.put(flight.fid, flight);
+    }
+    return fids;
+  }
+
+  private static void getNames(ByteBuffer in, List<String> names) {
+    int count = in.getInt();
+    for (int i = 0; i < count; i++) {
+      names.add(getString(in));
+    }
+  }
+
+  public static void putString(ByteBuffer out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalArgumentException("string too long");
+    }
+    out.putShort((short) bytes.length);
+    out.put(bytes);
+  }
+
+  public static String getString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort() & 0xFFFF];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,193 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Requests and responses of the binary protocol, run against a Query stub so
+ * no database is needed.
+ *
+ * Run with: java -cp "lib/*:." org.junit.runner.JUnitCore BinaryProtocolTest
+ */
+public class BinaryProtocolTest
+{
+  // answers search and reservations with canned replies and looks flights up in a map
+  private static class StubQuery extends Query
+  {
+    final Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+    Reply reply;
+    List<Object> searched;
+
+    StubQuery()
+    {
+      super("unused.properties");
+    }
+
+    @Override
+    public Flight getFlight(int fid) {
+      return flights.get(fid);
+    }
+
+    @Override
+    public Reply search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+      searched = Arrays.<Object>asList(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      return reply;
+    }
+
+    @Override
+    public Reply reservations() {
+      return reply;
+    }
+  }
+
+  private static Flight flight(int fid, int time) {
+    return new Flight(fid, 3, 1, 100 + fid, 0, 1, time, 10, 200 + fid);
+  }
+
+  private static ByteBuffer searchRequest(String origin, String dest, boolean direct, int day, int count) {
+    ByteBuffer request = ByteBuffer.allocate(256);
+    request.put(BinaryProtocol.SEARCH);
+    BinaryProtocol.putString(request, origin);
+    BinaryProtocol.putString(request, dest);
+    request.put((byte) (direct ? 1 : 0));
+    request.putInt(day);
+    request.putInt(count);
+    request.flip();
+    return request;
+  }
+
+  // run the request, encode the response and decode it again, checking the frame length
+  private static Reply roundTrip(StubQuery q, ByteBuffer request, Map<Integer, Flight> flights,
+                                 List<String> cities, List<String> carriers) {
+    byte opcode = request.get(0);
+    Reply reply = BinaryProtocol.execute(q, request);
+    ByteBuffer out = ByteBuffer.allocate(4096);
+    BinaryProtocol.encode(opcode, reply, q, out);
+    out.flip();
+    assertEquals(out.remaining() - 4, out.getInt());
+    Reply decoded = BinaryProtocol.decode(opcode, out, flights, cities, carriers, null);
+    assertFalse(out.hasRemaining());
+    return decoded;
+  }
+
+  private static void assertSameFlight(Flight expected, Flight actual) {
+    assertEquals(Arrays.asList(expected.fid, expected.dayOfMonth, expected.carrierId, expected.flightNum, expected.originCity,
+                               expected.destCity, expected.time, expected.capacity, expected.price),
+                 Arrays.asList(actual.fid, actual.dayOfMonth, actual.carrierId, actual.flightNum, actual.originCity,
+                               actual.destCity, actual.time, actual.capacity, actual.price));
+  }
+
+  @Test
+  public void searchRoundTripsItinerariesAndTheirFlights() {
+    StubQuery q = new StubQuery();
+    q.flights.put(7, flight(7, 95));
+    q.flights.put(3, flight(3, 100));
+    q.flights.put(12, flight(12, 140));
+    q.reply = Reply.ofItineraries(Arrays.asList(new Itinerary(7, 0, 95), new Itinerary(3, 12, 240, true)));
+
+    Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+    Reply reply = roundTrip(q, searchRequest("Seattle WA", "Boston MA", false, 3, 2), flights, null, null);
+
+    assertEquals(Arrays.<Object>asList("Seattle WA", "Boston MA", false, 3, 2), q.searched);
+    assertTrue(reply.ok());
+    assertEquals(2, reply.itineraries.size());
+    Itinerary direct = reply.itineraries.get(0);
+    assertEquals(Arrays.asList(7, 0, 95), Arrays.asList(direct.fid1, direct.fid2, direct.totalTime));
+    assertFalse(direct.soldOut);
+    Itinerary oneStop = reply.itineraries.get(1);
+    assertEquals(Arrays.asList(3, 12, 240), Arrays.asList(oneStop.fid1, oneStop.fid2, oneStop.totalTime));
+    assertTrue(oneStop.soldOut);
+    assertEquals(3, flights.size());
+    for (int fid : new int[] {7, 3, 12}) {
+      assertSameFlight(q.flights.get(fid), flights.get(fid));
+    }
+  }
+
+  @Test
+  public void reservationsRoundTripWithTheirFlights() {
+    StubQuery q = new StubQuery();
+    q.flights.put(7, flight(7, 95));
+    q.flights.put(3, flight(3, 100));
+    q.flights.put(12, flight(12, 140));
+    q.reply = Reply.ofReservations(Arrays.asList(new Reservation(1, true, 7, 0), new Reservation(2, false, 3, 12)));
+
+    ByteBuffer request = ByteBuffer.allocate(1);
+    request.put(BinaryProtocol.RESERVATIONS).flip();
+    Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+    Reply reply = roundTrip(q, request, flights, null, null);
+
+    assertEquals(2, reply.reservations.size());
+    Reservation first = reply.reservations.get(0);
+    assertEquals(Arrays.<Object>asList(1, true, 7, 0), Arrays.<Object>asList(first.reservationId, first.paid, first.fid1, first.fid2));
+    Reservation second = reply.reservations.get(1);
+    assertEquals(Arrays.<Object>asList(2, false, 3, 12), Arrays.<Object>asList(second.reservationId, second.paid, second.fid1, second.fid2));
+    assertSameFlight(q.flights.get(12), flights.get(12));
+  }
+
+  @Test
+  public void dictionaryRoundTripsEveryName() {
+    FlightDictionary dictionary = Query.dictionary();
+    dictionary.internCity("Seattle WA");
+    dictionary.internCity("Boston MA");
+    dictionary.internCarrier("AS");
+    List<String> expectedCities = new ArrayList<String>();
+    for (int id = 0; id < dictionary.cityCount(); id++) {
+      expectedCities.add(dictionary.cityName(id));
+    }
+    List<String> expectedCarriers = new ArrayList<String>();
+    for (int id = 0; id < dictionary.carrierCount(); id++) {
+      expectedCarriers.add(dictionary.carrierName(id));
+    }
+
+    ByteBuffer request = ByteBuffer.allocate(1);
+    request.put(BinaryProtocol.DICTIONARY).flip();
+    List<String> cities = new ArrayList<String>();
+    List<String> carriers = new ArrayList<String>();
+    Reply reply = roundTrip(new StubQuery(), request, null, cities, carriers);
+
+    assertTrue(reply.ok());
+    assertEquals(expectedCities, cities);
+    assertEquals(expectedCarriers, carriers);
+    assertTrue(cities.contains("Seattle WA") && carriers.contains("AS"));
+  }
+
+  @Test
+  public void failedReplyCarriesValuesWithoutPayload() {
+    StubQuery q = new StubQuery();
+    q.reply = Reply.of(Reply.INSUFFICIENT_FUNDS, 50, 300);
+    ByteBuffer request = ByteBuffer.allocate(1);
+    request.put(BinaryProtocol.RESERVATIONS).flip();
+    Reply reply = roundTrip(q, request, new HashMap<Integer, Flight>(), null, null);
+
+    assertEquals(Reply.INSUFFICIENT_FUNDS, reply.status);
+    assertEquals(Arrays.asList(50, 300), Arrays.asList(reply.value(0), reply.value(1)));
+  }
+
+  @Test
+  public void truncatedFrameIsBadRequest() {
+    ByteBuffer whole = searchRequest("Seattle WA", "Boston MA", true, 3, 2);
+    for (int length = 0; length < whole.limit(); length++) {
+      StubQuery q = new StubQuery();
+      ByteBuffer truncated = whole.duplicate();
+      truncated.limit(length);
+      assertEquals("cut at " + length, Reply.BAD_REQUEST, BinaryProtocol.execute(q, truncated).status);
+      assertNull(q.searched);
+    }
+  }
+
+  @Test
+  public void unknownOpcodeIsBadRequest() {
+    ByteBuffer request = ByteBuffer.allocate(1);
+    request.put((byte) 99).flip();
+    assertEquals(Reply.BAD_REQUEST, BinaryProtocol.execute(new StubQuery(), request).status);
+  }
+}
@@ -0,0 +1,288 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link BinaryProtocol} on a TCP port.
+ *
+ * One selector thread does every socket read and write, into pooled direct
+ * buffers. Commands block on the database, so each request runs on a worker
+ * thread against the connection's own {@link Query}. A connection has at most
+ * one request running; requests it pipelines behind that one wait in its read
+ * buffer, and reading stops until the response is written.
+ *
+ * Usage: java -cp "lib/*:." BinaryServer [dbconn.properties] [port]
+ * flightservice.binary_workers sets the number of worker threads (default 64).
+ */
+public class BinaryServer
+{
+  private static final int DEFAULT_PORT = 4040;
+
+  // largest request accepted; requests are a few strings and ints
+  private static final int MAX_REQUEST = 8 * 1024;
+  private static final int RESPONSE_BUFFER = 64 * 1024;
+
+  private final String configFilename;
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final ExecutorService workers;
+  private final BufferPool requestBuffers = new BufferPool(MAX_REQUEST + 4, 1024);
+  private final BufferPool responseBuffers = new BufferPool(RESPONSE_BUFFER, 256);
+
+  // connections whose request has finished, for the selector thread to write out
+  private final ConcurrentLinkedQueue<Client> finished = new ConcurrentLinkedQueue<Client>();
+
+  /** One client connection and its session. */
+  private static class Client
+  {
+    final SocketChannel channel;
+    final SelectionKey key;
+
+    // bytes received so far, in write mode
+    final ByteBuffer in;
+
+    // length of the request running, 0 when none is
+    int running;
+    ByteBuffer out;
+    boolean quit;
+    boolean closed;
+
+    // opened by the first request, used by one worker at a time under the client's lock
+    Query query;
+
+    Client(SocketChannel channel, SelectionKey key, ByteBuffer in)
+    {
+      this.channel = channel;
+      this.key = key;
+      this.in = in;
+    }
+  }
+
+  public BinaryServer(String configFilename, int port, int workerCount) throws IOException
+  {
+    this.configFilename = configFilename;
+    this.selector = Selector.open();
+    this.server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    this.workers = Executors.newFixedThreadPool(workerCount);
+  }
+
+  public void serve() throws IOException {
+    while (server.isOpen()) {
+      selector.select();
+      Client done;
+      while ((done = finished.poll()) != null) {
+        respond(done);
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+        Client client = (Client) key.attachment();
+        try {
+          if (key.isReadable()) {
+            read(client);
+          }
+          if (key.isValid() && key.isWritable()) {
+            write(client);
+          }
+        } catch (IOException e) {
+          close(client);
+        }
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Client(channel, key, requestBuffers.take()));
+  }
+
+  private void read(Client client) throws IOException {
+    if (client.channel.read(client.in) < 0) {
+      close(client);
+      return;
+    }
+    dispatch(client);
+  }
+
+  // start the next complete request, if there is one and nothing else is running
+  private void dispatch(Client client) throws IOException {
+    if (client.running > 0 || client.out != null) {
+      return;
+    }
+    ByteBuffer in = client.in;
+    if (in.position() >= 4) {
+      int length = in.getInt(0);
+      if (length <= 0 || length > MAX_REQUEST) {
+        close(client);
+        return;
+      }
+      if (in.position() >= 4 + length) {
+        ByteBuffer request = in.duplicate();
+        request.limit(4 + length);
+        request.position(4);
+        final ByteBuffer frame = request.slice();
+        client.running = length;
+        client.key.interestOps(0);
+        workers.execute(() -> run(client, frame));
+        return;
+      }
+    }
+    client.key.interestOps(SelectionKey.OP_READ);
+  }
+
+  // on a worker thread: run the request and queue the response for the selector thread
+  private void run(Client client, ByteBuffer request) {
+    byte opcode = request.get(0);
+    ByteBuffer out = responseBuffers.take();
+    synchronized (client) {
+      try {
+        if (client.query == null) {
+          client.query = open();
+        }
+        out = encode(opcode, BinaryProtocol.execute(client.query, request), client.query, out);
+      } catch (Exception e) {
+        // no database session could be opened; the next request tries again
+        out.clear();
+        out = encode(opcode, Reply.of(Reply.FAILED), null, out);
+      }
+    }
+    out.flip();
+    client.out = out;
+    client.quit = opcode == BinaryProtocol.QUIT;
+    finished.offer(client);
+    selector.wakeup();
+  }
+
+  // encode the response, moving to a bigger buffer until it fits
+  private ByteBuffer encode(byte opcode, Reply reply, Query q, ByteBuffer out) {
+    while (true) {
+      try {
+        BinaryProtocol.encode(opcode, reply, q, out);
+        return out;
+      } catch (BufferOverflowException e) {
+        int capacity = out.capacity() * 2;
+        responseBuffers.release(out);
+        out = ByteBuffer.allocateDirect(capacity);
+      }
+    }
+  }
+
+  private Query open() throws Exception {
+    Query q = new Query(configFilename);
+    q.openConnection();
+    q.prepareStatements();
+    return q;
+  }
+
+  // on the selector thread once a request has finished
+  private void respond(Client client) {
+    ByteBuffer in = client.in;
+    in.flip();
+    in.position(4 + client.running);
+    in.compact();
+    client.running = 0;
+    if (client.closed) {
+      requestBuffers.release(in);
+      responseBuffers.release(client.out);
+      client.out = null;
+      return;
+    }
+    try {
+      write(client);
+    } catch (IOException e) {
+      close(client);
+    }
+  }
+
+  private void write(Client client) throws IOException {
+    client.channel.write(client.out);
+    if (client.out.hasRemaining()) {
+      client.key.interestOps(SelectionKey.OP_WRITE);
+      return;
+    }
+    responseBuffers.release(client.out);
+    client.out = null;
+    if (client.quit) {
+      close(client);
+      return;
+    }
+    dispatch(client);
+  }
+
+  private void close(Client client) {
+    if (client.closed) {
+      return;
+    }
+    client.closed = true;
+    client.key.cancel();
+    try {
+      client.channel.close();
+    } catch (IOException ignored) {}
+    if (client.running == 0) {
+      // a running request still reads from the buffer, respond() releases it then
+      requestBuffers.release(client.in);
+      responseBuffers.release(client.out);
+      client.out = null;
+    }
+    workers.execute(() -> {
+      synchronized (client) {
+        if (client.query != null) {
+          // a session only this JVM holds goes with its connection; a shared one stays for other nodes
+          if (!client.query.sessionIsShared()) {
+            client.query.endSession();
+          }
+          try {
+            client.query.closeConnection();
+          } catch (Exception ignored) {}
+          client.query = null;
+        }
+      }
+    });
+  }
+
+  public void close() throws IOException {
+    server.close();
+    selector.wakeup();
+    workers.shutdown();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String config = args.length > 0 ? args[0] : FlightService.DBCONFIG_FILENAME;
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+    Properties configProps = new Properties();
+    configProps.load(new FileInputStream(config));
+    int workerCount = Integer.parseInt(configProps.getProperty("flightservice.binary_workers", "64").trim());
+    BinaryServer server = new BinaryServer(config, port, workerCount);
+    System.out.println("Serving on port " + port);
+    server.serve();
+  }
+}
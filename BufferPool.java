@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers of one size, reused between requests so the binary server
+ * does not allocate (or have the JDK copy through a temporary direct buffer)
+ * for every read and write. Buffers of any other size are left to the GC.
+ */
+public class BufferPool
+{
+  private final int bufferSize;
+  private final int maxIdle;
+  private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  public BufferPool(int bufferSize, int maxIdle)
+  {
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+
+  // a cleared buffer of bufferSize bytes
+  public ByteBuffer take() {
+    ByteBuffer buffer = idle.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    idleCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) {
+      return;
+    }
+    if (idleCount.incrementAndGet() <= maxIdle) {
+      idle.offer(buffer);
+    } else {
+      idleCount.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections to one database, shared by every session in
+ * the JVM. Connections are opened on demand up to the limit; after that
+ * borrowers wait for one to be released or discarded, failing after
+ * BORROW_TIMEOUT_MILLIS. Each pooled connection is handed out as a
+ * {@link Shard} so its prepared statements are kept between borrowers.
+ */
+public class ConnectionPool
+{
+  /** Opens a new connection to the pool's database. */
+  public interface Factory
+  {
+    Connection open() throws SQLException;
+  }
+
+  private static final ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+  private static final long BORROW_TIMEOUT_MILLIS = 30000;
+
+  private final int index;
+  private final Factory factory;
+  private final LinkedBlockingQueue<Shard> idle = new LinkedBlockingQueue<Shard>();
+  // one permit per connection that may be handed out, open or not
+  private final Semaphore available;
+
+  private ConnectionPool(int index, int size, Factory factory)
+  {
+    this.index = index;
+    this.available = new Semaphore(size, true);
+    this.factory = factory;
+  }
+
+  // the pool for the given database url, created on first use
+  public static ConnectionPool shared(String url, int index, int size, Factory factory) {
+    return pools.computeIfAbsent(url, key -> new ConnectionPool(index, size, factory));
+  }
+
+  public Shard borrow() throws SQLException {
+    try {
+      if (!available.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("timed out waiting for a pooled connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted waiting for a pooled connection", e);
+    }
+    Shard shard = idle.poll();
+    if (shard != null) {
+      return shard;
+    }
+    try {
+      return new Shard(index, factory.open());
+    } catch (SQLException e) {
+      available.release();
+      throw e;
+    }
+  }
+
+  public void release(Shard shard) {
+    idle.offer(shard);
+    available.release();
+  }
+
+  // drop a connection left in an unknown state, making room for a new one
+  public void discard(Shard shard) {
+    try {
+      shard.close();
+    } catch (SQLException ignored) {}
+    available.release();
+  }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.regex.Pattern;
+
+/**
+ * Session store backed by one file per token in a directory that every
+ * FlightService node can reach, standing in for a shared session service.
+ * A state is written to a temporary file and moved into place, so readers
+ * on other nodes never see half of one.
+ *
+ * A file's modification time is when its session was last used; files idle
+ * for longer than the timeout are treated as gone and deleted by whichever
+ * node next sweeps the directory.
+ */
+public class FileSessionStore implements SessionStore
+{
+  private static final Pattern TOKEN = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+  private final Path directory;
+  private final long idleMillis;
+  private volatile long sweptAt = 0;
+
+  public FileSessionStore(String directory, long idleMillis) throws IOException
+  {
+    this.directory = Paths.get(directory);
+    this.idleMillis = idleMillis;
+    Files.createDirectories(this.directory);
+  }
+
+  private Path path(String token) throws IOException {
+    if (!TOKEN.matcher(token).matches()) {
+      throw new IOException("invalid session token");
+    }
+    return directory.resolve(token + ".session");
+  }
+
+  public SessionState load(String token) throws IOException {
+    Path file = path(token);
+    try {
+      long now = System.currentTimeMillis();
+      if (now - Files.getLastModifiedTime(file).toMillis() > idleMillis) {
+        Files.deleteIfExists(file);
+        return null;
+      }
+      SessionState state = SessionState.decode(Files.readAllBytes(file));
+      Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+      return state;
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  public void save(String token, SessionState state) throws IOException {
+    Path target = path(token);
+    Path temporary = Files.createTempFile(directory, token, ".tmp");
+    Files.write(temporary, state.encode());
+    Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    sweep();
+  }
+
+  public void remove(String token) throws IOException {
+    Files.deleteIfExists(path(token));
+  }
+
+  public boolean isShared() {
+    return true;
+  }
+
+  // delete idle session files and abandoned temporary files, at most once per idle timeout
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    if (now - sweptAt < idleMillis) {
+      return;
+    }
+    sweptAt = now;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{session,tmp}")) {
+      for (Path file : files) {
+        try {
+          if (now - Files.getLastModifiedTime(file).toMillis() > idleMillis) {
+            Files.deleteIfExists(file);
+          }
+        } catch (IOException e) {
+          // another node got to it first
+        }
+      }
+    } catch (IOException e) {
+      // try again at the next sweep
+    }
+  }
+}
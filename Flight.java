@@ -0,0 +1,72 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Flights table as the application keeps it in memory. Carrier
+ * and cities are stored as {@link FlightDictionary} ids, so a cached flight is
+ * a handful of ints and is only turned into text when it is printed.
+ *
+ * Flights are immutable; when a row changes, a new Flight replaces the cached one.
+ */
+public class Flight
+{
+  public final int fid;
+  public final int dayOfMonth;
+  public final int carrierId;
+  public final int flightNum;
+  public final int originCity;
+  public final int destCity;
+  public final int time;
+  public final int capacity;
+  public final int price;
+  public final boolean canceled;
+
+  public Flight(int fid, int dayOfMonth, int carrierId, int flightNum, int originCity, int destCity,
+                int time, int capacity, int price)
+  {
+    this(fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity, price, false);
+  }
+
+  public Flight(int fid, int dayOfMonth, int carrierId, int flightNum, int originCity, int destCity,
+                int time, int capacity, int price, boolean canceled)
+  {
+    this.fid = fid;
+    this.dayOfMonth = dayOfMonth;
+    this.carrierId = carrierId;
+    this.flightNum = flightNum;
+    this.originCity = originCity;
+    this.destCity = destCity;
+    this.time = time;
+    this.capacity = capacity;
+    this.price = price;
+    this.canceled = canceled;
+  }
+
+  // the flight in the current row, which must have the Flights column names
+  public static Flight read(ResultSet row, FlightDictionary dictionary) throws SQLException {
+    return new Flight(row.getInt("fid"), row.getInt("day_of_month"), dictionary.internCarrier(row.getString("carrier_id")),
+                      row.getInt("flight_num"), dictionary.internCity(row.getString("origin_city")),
+                      dictionary.internCity(row.getString("dest_city")), row.getInt("actual_time"),
+                      row.getInt("capacity"), row.getInt("price"), row.getInt("canceled") != 0);
+  }
+
+  // append this flight in the format search and reservations print
+  public void render(StringBuilder out, FlightDictionary dictionary) {
+    out.append("ID: ").append(fid)
+       .append(" Day: ").append(dayOfMonth)
+       .append(" Carrier: ").append(dictionary.carrierName(carrierId))
+       .append(" Number: ").append(flightNum)
+       .append(" Origin: ").append(dictionary.cityName(originCity))
+       .append(" Dest: ").append(dictionary.cityName(destCity))
+       .append(" Duration: ").append(time)
+       .append(" Capacity: ").append(capacity)
+       .append(" Price: ").append(price)
+       .append("\n");
+  }
+
+  public String toString(FlightDictionary dictionary) {
+    StringBuilder out = new StringBuilder();
+    render(out, dictionary);
+    return out.toString();
+  }
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs concurrent sessions through {@link FlightService#execute} and reports
+ * throughput, to compare two configurations of the same workload.
+ *
+ * Usage: java -cp "lib/*:." FlightBenchmark shard|journal|replica|admission <baseline.properties> <candidate.properties> [sessions] [seconds]
+ *
+ * shard:   search, book and cancel on rotating days, so bookings spread over
+ *          every reservation shard. Run it once against a single shard config
+ *          and once against a sharded one.
+ * journal: search, book, pay and cancel. Run it once without and once with
+ *          flightservice.journal set to compare the synchronous path.
+ * replica: half the sessions search and list reservations while the other
+ *          half book and cancel. Run it once without and once with
+ *          flightservice.replica.url set.
+ * admission: half the sessions book and cancel one flight while the other
+ *          half search. Run it once without and once with
+ *          flightservice.admission set, and compare the p99 latencies.
+ *
+ * WARNING: every run starts by truncating UserInfo and Reserve on every shard
+ * of the configuration it is given. Point it only at databases kept for
+ * benchmarking; it refuses a configuration that does not set
+ * flightservice.benchmark.disposable = true.
+ *
+ * Each configuration runs in a JVM of its own: the journal, admission control,
+ * seat table and connection pools are set up once per JVM from the first
+ * configuration loaded, so a second run in the same JVM would reuse them.
+ */
+public class FlightBenchmark
+{
+  private static final String ORIGIN = "\"Seattle WA\"";
+  private static final String DEST = "\"Boston MA\"";
+
+  /** One session's repeated unit of work. */
+  interface Workload
+  {
+    void setUp(Query q, int session) throws Exception;
+
+    // run one operation, return false if it failed
+    boolean step(Query q, int session, long iteration) throws Exception;
+  }
+
+  // book a flight on a rotating day and cancel it again
+  static class BookCancelWorkload implements Workload
+  {
+    public void setUp(Query q, int session) {
+      FlightService.execute(q, "create bench" + session + " pw 100000");
+      FlightService.execute(q, "login bench" + session + " pw");
+    }
+
+    public boolean step(Query q, int session, long iteration) {
+      return bookAndCancel(q, (int) ((session + iteration) % 28) + 1);
+    }
+
+    boolean bookAndCancel(Query q, int day) {
+      FlightService.execute(q, "search " + ORIGIN + " " + DEST + " 1 " + day + " 1");
+      String booked = FlightService.execute(q, "book 0");
+      int marker = booked.indexOf("reservation ID: ");
+      if (marker < 0) {
+        return false;
+      }
+      String id = booked.substring(marker + "reservation ID: ".length()).trim();
+      return FlightService.execute(q, "cancel " + id).startsWith("Canceled");
+    }
+  }
+
+  // book, pay for and cancel a flight on a rotating day
+  static class BookPayCancelWorkload extends BookCancelWorkload
+  {
+    public boolean step(Query q, int session, long iteration) {
+      int day = (int) ((session + iteration) % 28) + 1;
+      FlightService.execute(q, "search " + ORIGIN + " " + DEST + " 1 " + day + " 1");
+      String booked = FlightService.execute(q, "book 0");
+      int marker = booked.indexOf("reservation ID: ");
+      if (marker < 0) {
+        return false;
+      }
+      String id = booked.substring(marker + "reservation ID: ".length()).trim();
+      return FlightService.execute(q, "pay " + id).startsWith("Paid")
+          && FlightService.execute(q, "cancel " + id).startsWith("Canceled");
+    }
+  }
+
+  // even sessions only read, odd sessions book and cancel
+  static class ReadWriteWorkload extends BookCancelWorkload
+  {
+    public boolean step(Query q, int session, long iteration) {
+      if (session % 2 == 1) {
+        return super.step(q, session, iteration);
+      }
+      int day = (int) ((session + iteration) % 28) + 1;
+      String found = FlightService.execute(q, "search " + ORIGIN + " " + DEST + " 0 " + day + " 10");
+      FlightService.execute(q, "reservations");
+      return !found.startsWith("Failed");
+    }
+  }
+
+  // odd sessions all book and cancel the same flight, even sessions search that day
+  static class FlashSaleWorkload extends BookCancelWorkload
+  {
+    public boolean step(Query q, int session, long iteration) {
+      if (session % 2 == 1) {
+        return bookAndCancel(q, 1);
+      }
+      return !FlightService.execute(q, "search " + ORIGIN + " " + DEST + " 0 1 10").startsWith("Failed");
+    }
+  }
+
+  // operations per second over the given number of seconds
+  static double run(String config, Workload workload, int sessions, int seconds) throws Exception {
+    requireDisposable(config);
+    Query admin = new Query(config);
+    admin.openConnection();
+    admin.prepareStatements();
+    admin.clearTables();
+    admin.closeConnection();
+
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final List<long[]> latencies = new ArrayList<long[]>();
+    List<Thread> threads = new ArrayList<Thread>();
+    List<Query> queries = new ArrayList<Query>();
+    for (int i = 0; i < sessions; i++) {
+      Query q = new Query(config);
+      q.openConnection();
+      q.prepareStatements();
+      workload.setUp(q, i);
+      queries.add(q);
+    }
+    for (int i = 0; i < sessions; i++) {
+      final int session = i;
+      final Query q = queries.get(i);
+      final long[] stepNanos = new long[1 << 20];
+      latencies.add(stepNanos);
+      Thread thread = new Thread(() -> {
+        long iteration = 0;
+        while (running.get()) {
+          try {
+            long begin = System.nanoTime();
+            boolean ok = workload.step(q, session, iteration);
+            stepNanos[(int) (iteration++ % stepNanos.length)] = System.nanoTime() - begin;
+            if (ok) {
+              completed.incrementAndGet();
+            } else {
+              failed.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failed.incrementAndGet();
+          }
+        }
+      });
+      threads.add(thread);
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    Thread.sleep(seconds * 1000L);
+    running.set(false);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    for (Query q : queries) {
+      q.closeConnection();
+    }
+    long[] all = latencies.stream().flatMapToLong(Arrays::stream).filter(nanos -> nanos > 0).sorted().toArray();
+    System.out.printf("%s: %d ok, %d failed, %.1f ops/s, p50 %.2f ms, p99 %.2f ms%n", config, completed.get(), failed.get(),
+                      completed.get() / elapsed, percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6);
+    if (Query.flightsRefresher() != null) {
+      System.out.println(Query.flightsRefresher().stats());
+    }
+    return completed.get() / elapsed;
+  }
+
+  // refuse to wipe a database the configuration does not mark as kept for benchmarking
+  static void requireDisposable(String config) throws IOException {
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream(config)) {
+      configProps.load(in);
+    }
+    if (!Boolean.parseBoolean(configProps.getProperty("flightservice.benchmark.disposable", "false").trim())) {
+      throw new IllegalArgumentException(config + " does not set flightservice.benchmark.disposable = true; "
+                                         + "the benchmark truncates UserInfo and Reserve on every shard it names");
+    }
+  }
+
+  static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+  }
+
+  static void compare(String mode, String baseline, String candidate, int sessions, int seconds) throws Exception {
+    double before = runIsolated(mode, baseline, sessions, seconds);
+    double after = runIsolated(mode, candidate, sessions, seconds);
+    System.out.printf("speedup: %.2fx%n", before == 0 ? 0 : after / before);
+  }
+
+  // run one configuration in a fresh JVM, echoing its report and returning its operations per second
+  static double runIsolated(String mode, String config, int sessions, int seconds) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "FlightBenchmark",
+                                                "run", mode, config, Integer.toString(sessions), Integer.toString(seconds));
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    Process process = builder.start();
+    double throughput = 0;
+    try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+      String line;
+      while ((line = output.readLine()) != null) {
+        if (line.startsWith("throughput ")) {
+          throughput = Double.parseDouble(line.substring("throughput ".length()));
+        } else {
+          System.out.println(line);
+        }
+      }
+    }
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("benchmark of " + config + " exited with " + process.exitValue());
+    }
+    return throughput;
+  }
+
+  static Workload workload(String mode) {
+    if (mode.equals("shard")) {
+      return new BookCancelWorkload();
+    } else if (mode.equals("journal")) {
+      return new BookPayCancelWorkload();
+    } else if (mode.equals("replica")) {
+      return new ReadWriteWorkload();
+    } else if (mode.equals("admission")) {
+      return new FlashSaleWorkload();
+    }
+    return null;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3) {
+      System.out.println("usage: FlightBenchmark shard|journal|replica|admission <baseline.properties> <candidate.properties> [sessions] [seconds]");
+      return;
+    }
+    // "run <mode> <config> <sessions> <seconds>" is one side of a comparison, started by runIsolated
+    if (args[0].equals("run")) {
+      double throughput = run(args[2], workload(args[1]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+      System.out.println("throughput " + throughput);
+      System.exit(0);
+    }
+    int sessions = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+    int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+    if (workload(args[0]) == null) {
+      System.out.println("unknown benchmark " + Arrays.toString(args));
+      return;
+    }
+    requireDisposable(args[1]);
+    requireDisposable(args[2]);
+    compare(args[0], args[1], args[2], sessions, seconds);
+  }
+}
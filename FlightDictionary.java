@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Maps city names and carrier ids to small int ids so the search path can
+ * carry and compare ints, and only turn them back into text when rendering.
+ *
+ * Ids are handed out once and never change. Lookups from user input are case
+ * normalized, matching the case-insensitive comparison the database does.
+ */
+public class FlightDictionary
+{
+  public static final int UNKNOWN = -1;
+
+  private static final String LOAD_CITIES = "SELECT origin_city AS name FROM Flights UNION SELECT dest_city AS name FROM Flights";
+  private static final String LOAD_CARRIERS = "SELECT DISTINCT carrier_id AS name FROM Flights";
+
+  private final Table cities = new Table();
+  private final Table carriers = new Table();
+
+  // load every city and carrier in the flights table
+  public void load(Connection conn) throws SQLException {
+    Statement loadStatement = conn.createStatement();
+    ResultSet result = loadStatement.executeQuery(LOAD_CITIES);
+    while (result.next()) {
+      cities.intern(result.getString("name"));
+    }
+    result.close();
+    result = loadStatement.executeQuery(LOAD_CARRIERS);
+    while (result.next()) {
+      carriers.intern(result.getString("name"));
+    }
+    result.close();
+    loadStatement.close();
+  }
+
+  public int cityId(String city) {
+    return cities.lookup(city);
+  }
+
+  public int internCity(String city) {
+    return cities.intern(city);
+  }
+
+  public String cityName(int id) {
+    return cities.name(id);
+  }
+
+  public int carrierId(String carrier) {
+    return carriers.lookup(carrier);
+  }
+
+  public int internCarrier(String carrier) {
+    return carriers.intern(carrier);
+  }
+
+  public String carrierName(int id) {
+    return carriers.name(id);
+  }
+
+  // ids run from 0 to count - 1, and more may be added as flights are loaded
+  public int cityCount() {
+    return cities.size();
+  }
+
+  public int carrierCount() {
+    return carriers.size();
+  }
+
+  // one string <-> id table, first spelling seen is the one rendered
+  private static class Table
+  {
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> names = new ArrayList<String>();
+
+    synchronized int lookup(String name) {
+      if (name == null) {
+        return UNKNOWN;
+      }
+      Integer id = ids.get(normalize(name));
+      return id == null ? UNKNOWN : id;
+    }
+
+    synchronized int intern(String name) {
+      String key = normalize(name);
+      Integer id = ids.get(key);
+      if (id == null) {
+        id = names.size();
+        names.add(name);
+        ids.put(key, id);
+      }
+      return id;
+    }
+
+    synchronized String name(int id) {
+      return names.get(id);
+    }
+
+    synchronized int size() {
+      return names.size();
+    }
+
+    private static String normalize(String name) {
+      return name.trim().toLowerCase(Locale.ROOT);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A first-come first-served queue per flight for bookings in this JVM.
+ *
+ * Two serializable bookings on the same flight both read its reservations
+ * before inserting, so under contention they deadlock and one is rolled back.
+ * Taking the flight's lock first makes them go one at a time instead. Both
+ * legs of a booking are locked in fid order, so bookings that share either
+ * leg cannot wait on each other in a cycle.
+ *
+ * A booking that finds maxQueue others already waiting for one of its flights
+ * is turned away at once instead of joining them, so a rush on one flight
+ * cannot tie up every worker thread.
+ */
+public class FlightLocks
+{
+  private final ConcurrentHashMap<Integer, ReentrantLock> locks = new ConcurrentHashMap<Integer, ReentrantLock>();
+  private final long timeoutMillis;
+  private final int maxQueue;
+
+  public FlightLocks(long timeoutMillis, int maxQueue)
+  {
+    this.timeoutMillis = timeoutMillis;
+    this.maxQueue = maxQueue;
+  }
+
+  // lock both flights (fid2 may be 0), or return false holding neither if a queue is full
+  // or the wait times out
+  public boolean lock(int fid1, int fid2) {
+    int first = fid2 == 0 ? fid1 : Math.min(fid1, fid2);
+    int second = fid2 == 0 ? 0 : Math.max(fid1, fid2);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    if (!tryLock(first, deadline)) {
+      return false;
+    }
+    if (second != 0 && second != first && !tryLock(second, deadline)) {
+      lockFor(first).unlock();
+      return false;
+    }
+    return true;
+  }
+
+  public void unlock(int fid1, int fid2) {
+    lockFor(fid1).unlock();
+    if (fid2 != 0 && fid2 != fid1) {
+      lockFor(fid2).unlock();
+    }
+  }
+
+  private boolean tryLock(int fid, long deadline) {
+    ReentrantLock lock = lockFor(fid);
+    // the queue length is an estimate, so the cap can be passed by a few at once
+    if (lock.isLocked() && lock.getQueueLength() >= maxQueue) {
+      return false;
+    }
+    try {
+      return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // fair, so waiting bookings are taken in arrival order
+  private ReentrantLock lockFor(int fid) {
+    return locks.computeIfAbsent(fid, key -> new ReentrantLock(true));
+  }
+}
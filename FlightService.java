@@ -21,6 +21,7 @@ public class FlightService
     System.out.println("> pay <reservation id>");
     System.out.println("> reservations");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> stats");
     System.out.println("> quit");
   }
 
@@ -143,6 +144,12 @@ public class FlightService
         response = "Error: Please provide a reservation_id";
     }
 
+    else if (tokens[0].equals("stats"))
+    {
+      /* flights refresh lag and changed rows */
+      response = q.transaction_stats();
+    }
+
     else if (tokens[0].equals("quit"))
       response = "Goodbye\n";
 
@@ -177,6 +184,11 @@ public class FlightService
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
+    /* resume a session started earlier, possibly on another server */
+    if (args.length > 0)
+      q.attachSession(args[0]);
+    else if (q.sessionIsShared())
+      System.out.println("Session token: " + q.sessionToken());
     menu(q); /* menu(...) does the real work */
     q.closeConnection();
   }
@@ -0,0 +1,157 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the in-process copy of Flights rows up to date by polling for the rows
+ * changed since the last poll, instead of reloading the table.
+ *
+ * Changes are found through Flights.row_version, a rowversion SQL Server bumps
+ * on every insert and update. Each poll reads the rows with versions from where
+ * the last poll stopped up to MIN_ACTIVE_ROWVERSION(), so rows written by
+ * transactions still running are picked up by a later poll instead of skipped.
+ *
+ * Flights are immutable, so a changed row is applied by swapping a new Flight
+ * into its cache entry; readers never wait and see either the old row or the
+ * new one. Sessions only add flights they load themselves if the fid is not
+ * cached yet, so a row they read before a change never replaces the change.
+ */
+public class FlightsRefresher
+{
+  private static final String HORIZON = "SELECT CAST(MIN_ACTIVE_ROWVERSION() AS BIGINT) AS horizon";
+
+  private static final String CHANGED_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, canceled FROM Flights WHERE row_version >= CAST(CAST(? AS BIGINT) AS BINARY(8)) AND row_version < CAST(CAST(? AS BIGINT) AS BINARY(8))";
+
+  private final Connection conn;
+  private final ConcurrentHashMap<Integer, Flight> cache;
+  private final FlightDictionary dictionary;
+  private final long intervalMillis;
+  private PreparedStatement horizonStatement;
+  private PreparedStatement changedStatement;
+
+  // first row version not yet applied
+  private long from;
+
+  // metrics, guarded by this
+  private long refreshedAt;
+  private long refreshes;
+  private long changedRows;
+  private int lastChangedRows;
+  private long failures;
+  private String lastFailure;
+
+  public FlightsRefresher(Connection conn, ConcurrentHashMap<Integer, Flight> cache, FlightDictionary dictionary,
+                          long intervalMillis) throws SQLException
+  {
+    this.conn = conn;
+    this.cache = cache;
+    this.dictionary = dictionary;
+    this.intervalMillis = intervalMillis;
+    horizonStatement = conn.prepareStatement(HORIZON);
+    changedStatement = conn.prepareStatement(CHANGED_FLIGHTS);
+    // rows loaded from now on are current, only later changes need applying
+    long startedAt = System.currentTimeMillis();
+    from = horizon();
+    synchronized (this) {
+      refreshedAt = startedAt;
+    }
+  }
+
+  public void start() {
+    Thread thread = new Thread(this::pollLoop, "flights-refresher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void pollLoop() {
+    while (true) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      // failures are only counted here; stats() reports them, so nothing is written to a terminal
+      // an interactive session may be using
+      try {
+        poll();
+      } catch (SQLException e) {
+        synchronized (this) {
+          failures++;
+          lastFailure = e.getMessage();
+        }
+      }
+    }
+  }
+
+  // apply the rows changed since the last poll, returning how many there were
+  public int poll() throws SQLException {
+    long startedAt = System.currentTimeMillis();
+    long to = horizon();
+    int changed = 0;
+    if (to > from) {
+      changedStatement.clearParameters();
+      changedStatement.setLong(1, from);
+      changedStatement.setLong(2, to);
+      ResultSet result = changedStatement.executeQuery();
+      while (result.next()) {
+        Flight flight = Flight.read(result, dictionary);
+        cache.put(flight.fid, flight);
+        changed++;
+      }
+      result.close();
+      from = to;
+    }
+    synchronized (this) {
+      refreshedAt = startedAt;
+      refreshes++;
+      changedRows += changed;
+      lastChangedRows = changed;
+    }
+    return changed;
+  }
+
+  private long horizon() throws SQLException {
+    ResultSet result = horizonStatement.executeQuery();
+    result.next();
+    long horizon = result.getLong("horizon");
+    result.close();
+    return horizon;
+  }
+
+  // how far behind the database the cache may be: the time since the last successful poll began
+  public synchronized long lagMillis() {
+    return System.currentTimeMillis() - refreshedAt;
+  }
+
+  public synchronized long refreshes() {
+    return refreshes;
+  }
+
+  // changed rows applied by every poll so far
+  public synchronized long changedRows() {
+    return changedRows;
+  }
+
+  public synchronized int lastChangedRows() {
+    return lastChangedRows;
+  }
+
+  public synchronized long failures() {
+    return failures;
+  }
+
+  // one line with the lag, the rows changed and the failed polls, for the stats command
+  public synchronized String stats() {
+    return String.format("Flights refresh: lag %d ms, %d rows changed by the last poll, %d over %d polls, %d failed polls%s",
+                         lagMillis(), lastChangedRows, changedRows, refreshes, failures,
+                         lastFailure == null ? "" : " (last: " + lastFailure + ")");
+  }
+
+  public void close() throws SQLException {
+    horizonStatement.close();
+    changedStatement.close();
+    conn.close();
+  }
+}
@@ -0,0 +1,71 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session store for a single JVM. States are kept encoded, the same as a
+ * shared store would hold them, so sessions never alias each other's objects.
+ * A state not loaded or saved for the idle timeout is dropped.
+ */
+public class InProcessSessionStore implements SessionStore
+{
+  private static class Entry
+  {
+    final byte[] bytes;
+    volatile long touched;
+
+    Entry(byte[] bytes, long touched)
+    {
+      this.bytes = bytes;
+      this.touched = touched;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> states = new ConcurrentHashMap<String, Entry>();
+  private final long idleMillis;
+  private volatile long sweptAt = System.currentTimeMillis();
+
+  public InProcessSessionStore(long idleMillis)
+  {
+    this.idleMillis = idleMillis;
+  }
+
+  public SessionState load(String token) {
+    Entry entry = states.get(token);
+    long now = System.currentTimeMillis();
+    if (entry == null || now - entry.touched > idleMillis) {
+      if (entry != null) {
+        states.remove(token, entry);
+      }
+      return null;
+    }
+    entry.touched = now;
+    return SessionState.decode(entry.bytes);
+  }
+
+  public void save(String token, SessionState state) {
+    long now = System.currentTimeMillis();
+    states.put(token, new Entry(state.encode(), now));
+    sweep(now);
+  }
+
+  public void remove(String token) {
+    states.remove(token);
+  }
+
+  public boolean isShared() {
+    return false;
+  }
+
+  // drop idle states, at most once per idle timeout, so sessions never resumed do not pile up
+  private void sweep(long now) {
+    if (now - sweptAt < idleMillis) {
+      return;
+    }
+    sweptAt = now;
+    for (Iterator<Entry> it = states.values().iterator(); it.hasNext(); ) {
+      if (now - it.next().touched > idleMillis) {
+        it.remove();
+      }
+    }
+  }
+}
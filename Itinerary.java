@@ -0,0 +1,34 @@
+/**
+ * A search result: one or two flight ids and the total flight time.
+ * {@code fid2} is 0 for a direct flight, the same convention the Reserve table uses.
+ * {@code soldOut} is only set by searches that mark sold-out itineraries rather
+ * than leave them out, and is not kept with the session.
+ */
+public class Itinerary
+{
+  public final int fid1;
+  public final int fid2;
+  public final int totalTime;
+  public final boolean soldOut;
+
+  public Itinerary(int fid1, int fid2, int totalTime)
+  {
+    this(fid1, fid2, totalTime, false);
+  }
+
+  public Itinerary(int fid1, int fid2, int totalTime, boolean soldOut)
+  {
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+    this.totalTime = totalTime;
+    this.soldOut = soldOut;
+  }
+
+  public boolean isDirect() {
+    return fid2 == 0;
+  }
+
+  public int numFlights() {
+    return isDirect() ? 1 : 2;
+  }
+}
@@ -0,0 +1,86 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Itineraries read one at a time from a running search query, in the order the
+ * query sorts them. Closing the cursor early cancels the rest of the query,
+ * ends the read transaction and hands the connection back to its pool.
+ *
+ * With a {@link SeatTable}, itineraries with a sold-out leg are marked, or
+ * skipped if {@code hideSoldOut} is set.
+ */
+public class ItineraryCursor
+{
+  private final ConnectionPool pool;
+  private final Shard shard;
+  private final PreparedStatement statement;
+  private final SeatTable seats;
+  private final boolean hideSoldOut;
+  private final int dayOfMonth;
+  private ResultSet rows;
+  private boolean exhausted = false;
+  private int rowsRead = 0;
+
+  public ItineraryCursor(ConnectionPool pool, Shard shard, PreparedStatement statement, ResultSet rows,
+                         SeatTable seats, boolean hideSoldOut, int dayOfMonth)
+  {
+    this.pool = pool;
+    this.shard = shard;
+    this.statement = statement;
+    this.rows = rows;
+    this.seats = seats;
+    this.hideSoldOut = hideSoldOut;
+    this.dayOfMonth = dayOfMonth;
+  }
+
+  // next itinerary, or null once the query has no more rows
+  public Itinerary next() throws SQLException {
+    while (!exhausted && rows.next()) {
+      rowsRead++;
+      Itinerary itinerary = read(rows, seats, dayOfMonth);
+      if (!(hideSoldOut && itinerary.soldOut)) {
+        return itinerary;
+      }
+    }
+    exhausted = true;
+    return null;
+  }
+
+  // rows read so far, including skipped ones
+  public int rowsRead() {
+    return rowsRead;
+  }
+
+  // the itinerary in the current row of a search query on the given day, checked against
+  // the seat table if there is one; full legs are noted in the table
+  public static Itinerary read(ResultSet rows, SeatTable seats, int dayOfMonth) throws SQLException {
+    int fid1 = rows.getInt("fid1");
+    int fid2 = rows.getInt("fid2");
+    boolean soldOut = false;
+    if (seats != null) {
+      if (!seats.hasSeats(fid1, rows.getInt("capacity1"))) {
+        seats.full(fid1, dayOfMonth);
+        soldOut = true;
+      }
+      if (!seats.hasSeats(fid2, rows.getInt("capacity2"))) {
+        seats.full(fid2, dayOfMonth);
+        soldOut = true;
+      }
+    }
+    return new Itinerary(fid1, fid2, rows.getInt("total_time"), soldOut);
+  }
+
+  public void close() {
+    try {
+      if (!exhausted) {
+        statement.cancel();
+      }
+      rows.close();
+      shard.commitTransaction();
+      pool.release(shard);
+    } catch (SQLException e) {
+      pool.discard(shard);
+    }
+  }
+}
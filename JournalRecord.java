@@ -0,0 +1,70 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One booking, payment or cancellation as written to the reservation journal.
+ *
+ * {@code amount} is the price paid for PAY and the refund for CANCEL (0 when
+ * the canceled reservation was unpaid). BOOK and CANCEL carry the fids and day
+ * so capacity and same-day checks can account for records not yet applied.
+ */
+public class JournalRecord
+{
+  public static final byte BOOK = 1;
+  public static final byte PAY = 2;
+  public static final byte CANCEL = 3;
+
+  long lsn;
+  public final byte op;
+  public final int reservationId;
+  public final String username;
+  public final int fid1;
+  public final int fid2;
+  public final int dayOfMonth;
+  public final int amount;
+
+  public JournalRecord(byte op, int reservationId, String username, int fid1, int fid2, int dayOfMonth, int amount)
+  {
+    this.op = op;
+    this.reservationId = reservationId;
+    this.username = username;
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+    this.dayOfMonth = dayOfMonth;
+    this.amount = amount;
+  }
+
+  // log sequence number, assigned when the record is appended
+  public long lsn() {
+    return lsn;
+  }
+
+  public boolean hasFlight(int fid) {
+    return fid != 0 && (fid1 == fid || fid2 == fid);
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeLong(lsn);
+    out.writeByte(op);
+    out.writeInt(reservationId);
+    out.writeInt(fid1);
+    out.writeInt(fid2);
+    out.writeInt(dayOfMonth);
+    out.writeInt(amount);
+    out.writeUTF(username);
+  }
+
+  static JournalRecord read(DataInputStream in) throws IOException {
+    long lsn = in.readLong();
+    byte op = in.readByte();
+    int reservationId = in.readInt();
+    int fid1 = in.readInt();
+    int fid2 = in.readInt();
+    int dayOfMonth = in.readInt();
+    int amount = in.readInt();
+    JournalRecord record = new JournalRecord(op, reservationId, in.readUTF(), fid1, fid2, dayOfMonth, amount);
+    record.lsn = lsn;
+    return record;
+  }
+}
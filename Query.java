@@ -1,9 +1,19 @@
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.lang.Math;
 import java.lang.Integer;
 
@@ -20,14 +30,53 @@ public class Query
   private String jSQLUser;
   private String jSQLPassword;
 
-  // DB Connection
+  // DB Connection, the home shard's connection
   private Connection conn;
 
-  // Logged In User
-  private String username; // customer username is unique
+  // UserInfo / Reserve partitions, shard 0 is conn
+  private ShardRouter router;
 
-  // store itineraries' fid
-  private ArrayList<String> itineraries;
+  // Logged in user, last search and last write, loaded from the session store when a
+  // command first needs them
+  private SessionState session;
+  private String sessionToken = UUID.randomUUID().toString();
+  private SessionStore sessions;
+
+  // how far behind the primary a replica may be and still serve reads
+  private long maxStalenessMillis;
+
+  // sessions of this JVM, when no shared store is configured
+  private static InProcessSessionStore inProcessSessions;
+
+  // city / carrier ids and flight details, shared by every session in this JVM
+  private static final FlightDictionary dictionary = new FlightDictionary();
+  private static boolean dictionaryLoaded = false;
+  private static final ConcurrentHashMap<Integer, Flight> flightCache = new ConcurrentHashMap<Integer, Flight>();
+
+  // seats taken per flight, shared by every session in this JVM, and what search does with sold-out itineraries
+  private static final SeatTable seats = new SeatTable();
+  private static boolean seatsLoaded = false;
+  private SeatTable searchSeats;
+  private boolean hideSoldOut;
+
+  // set on the JVM-wide helper connections that recount seats and refresh flights
+  private boolean background = false;
+
+  // optional poller that applies changed Flights rows to flightCache, once per JVM
+  private static FlightsRefresher flightsRefresher;
+  private static boolean flightsRefresherStarted = false;
+
+  // optional write-ahead journal for book / pay / cancel, shared by every session in this JVM
+  private static volatile ReservationJournal journal;
+  private static final List<JournalRecord> NO_PENDING = Collections.emptyList();
+
+  // optional admission control for search and booking commands, shared by every session in this JVM
+  private static volatile AdmissionController admission;
+  private static boolean admissionConfigured = false;
+
+  // set on the connections the journal writer applies records with
+  private boolean journalWriter = false;
+  private long[] shardAppliedLsn;
 
   // transactions
   private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
@@ -41,43 +90,58 @@ public class Query
 
   // Prepared Statements
   private static final String CREATE_USER = "INSERT INTO UserInfo (username, password, balance) VALUES (?,?,?)";
-  private PreparedStatement createUserStatement;
 
   private static final String LOGIN_SEARCH = "SELECT password FROM UserInfo WHERE username = ?";
-  private PreparedStatement loginSearchStatement;
 
-  private static final String SEARCH_DIRECT_FLIGHT = "INSERT INTO Itineraries (flight_1, flight_2, total_time) SELECT TOP (?) fid, 0, actual_time FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 ORDER BY actual_time ASC, fid ASC";
-  private PreparedStatement searchDirectStatement;
+  // search only reads, so it can run on a replica
+  private static final String SEARCH_DIRECT_FLIGHT = "SELECT TOP (?) fid AS fid1, 0 AS fid2, actual_time AS total_time, capacity AS capacity1, 0 AS capacity2 FROM Flights WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 ORDER BY actual_time ASC, fid ASC";
 
-  private static final String SEARCH_ONE_STOP_FLIGHT = "INSERT INTO Itineraries (flight_1, flight_2, total_time) SELECT TOP (?) f1.fid AS fid1, f2.fid AS fid2, f1.actual_time + f2.actual_time AS total_time FROM Flights f1, Flights f2 WHERE f1.origin_city = ? AND f1.dest_city = f2.origin_city AND f2.dest_city = ? AND f1.day_of_month = f2.day_of_month AND f1.day_of_month = ? AND f1.canceled = 0  AND f2.canceled = 0 ORDER BY total_time ASC, f1.fid ASC, f2.fid ASC";
-  private PreparedStatement searchOneStopStatement;
+  private static final String SEARCH_ONE_STOP_FLIGHT = "SELECT TOP (?) f1.fid AS fid1, f2.fid AS fid2, f1.actual_time + f2.actual_time AS total_time, f1.capacity AS capacity1, f2.capacity AS capacity2 FROM Flights f1, Flights f2 WHERE f1.origin_city = ? AND f1.dest_city = f2.origin_city AND f2.dest_city = ? AND f1.day_of_month = f2.day_of_month AND f1.day_of_month = ? AND f1.canceled = 0  AND f2.canceled = 0 ORDER BY total_time ASC, f1.fid ASC, f2.fid ASC";
 
-  private static final String GET_INFO = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price FROM Flights WHERE fid = ?";
+  private static final String GET_INFO = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, canceled FROM Flights WHERE fid = ?";
   private PreparedStatement getInfoStatement;
 
-  private static final String SORT = "SELECT * FROM Itineraries ORDER BY total_time ASC, flight_1 ASC, flight_2 ASC";
-  private PreparedStatement sortStatement;
-
+  // UserInfo / Reserve statements, prepared on whichever shard they are routed to
   private static final String MAKE_RESERVATION = "INSERT INTO Reserve VALUES (?, ?, ?, ?, ?, ?, ?)";
-  private PreparedStatement makeReservationStatement;
+
+  private static final String NEXT_RESERVATION_ID = "UPDATE Reserve SET next_id = next_id + 1 OUTPUT deleted.next_id AS nextId WHERE reserve_id = 0";
+
+  private static final String CHECK_DATE = "SELECT reserve_id FROM Reserve WHERE username = ? AND flight_date = ?";
+
+  private static final String COUNT_RESERVED = "SELECT count(*) AS reserved FROM Reserve WHERE fid1 = ? OR fid2 = ?";
 
   private static final String UPDATE_RESERVE = "UPDATE Reserve SET paid = ? WHERE reserve_id = ?";
-  private PreparedStatement updateReserveStatement;
 
   private static final String FIND_RESERVATION = "SELECT * FROM Reserve WHERE username = ? AND reserve_id = ? AND paid = 0";
-  private PreparedStatement findStatement;
+
+  private static final String LOCATE_RESERVATION = "SELECT reserve_id FROM Reserve WHERE reserve_id = ?";
+
+  private static final String LIST_RESERVATIONS = "SELECT reserve_id, paid, fid1, fid2 FROM Reserve WHERE username = ?";
 
   private static final String GET_FIDS = "SELECT fid1, fid2 FROM Reserve WHERE reserve_id = ?";
-  private PreparedStatement getFidsStatement;
 
-  private static final String VERIFY_RESERVATION = "SELECT username, paid FROM Reserve WHERE reserve_id = ?";
-  private PreparedStatement verifyReserveStatement;
+  private static final String VERIFY_RESERVATION = "SELECT username, paid, fid1, fid2 FROM Reserve WHERE reserve_id = ?";
+
+  private static final String GET_BALANCE = "SELECT balance FROM UserInfo WHERE username = ?";
+
+  private static final String SET_BALANCE = "UPDATE UserInfo SET balance = ? WHERE username = ?";
 
   private static final String UPDATE_BALANCE = "UPDATE UserInfo SET balance = (SELECT balance FROM UserInfo WHERE username = ?) + ? WHERE username = ?";
-  private PreparedStatement updateBalanceStatement;
 
   private static final String CANCEL_RESERVE = "UPDATE Reserve SET username = ' ', fid1 = 0, fid2 = 0, flight_date = 0, paid = 0 WHERE reserve_id = ?";
-  private PreparedStatement cancelReserveStatement;
+
+  // journal mode only
+  private static final String GET_RESERVATION = "SELECT username, paid, fid1, fid2, flight_date FROM Reserve WHERE reserve_id = ?";
+
+  private static final String READ_RESERVATION_ID = "SELECT next_id FROM Reserve WHERE reserve_id = 0";
+
+  private static final String ADVANCE_RESERVATION_ID = "UPDATE Reserve SET next_id = ? WHERE reserve_id = 0 AND next_id < ?";
+
+  private static final String DEDUCT_BALANCE = "UPDATE UserInfo SET balance = balance - ? WHERE username = ?";
+
+  private static final String GET_APPLIED_LSN = "SELECT applied_lsn FROM JournalState WHERE id = 0";
+
+  private static final String SET_APPLIED_LSN = "UPDATE JournalState SET applied_lsn = ? WHERE id = 0";
 
   public Query(String configFilename)
   {
@@ -98,18 +162,75 @@ public class Query
     Class.forName(jSQLDriver).newInstance();
 
     /* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
-            jSQLUser, // user
-            jSQLPassword); // password
+    conn = connect(jSQLUrl, jSQLUser, jSQLPassword);
 
-    conn.setAutoCommit(true); //by default automatically commit after each statement
+    /* open the additional reservation shards, shard 0 is the connection above */
+    List<Shard> shards = new ArrayList<Shard>();
+    shards.add(new Shard(0, conn));
+    int shardCount = Integer.parseInt(configProps.getProperty("flightservice.shards", "1").trim());
+    for (int i = 1; i < shardCount; i++) {
+      String prefix = "flightservice.shard." + i + ".";
+      shards.add(new Shard(i, connect(configProps.getProperty(prefix + "url"),
+              configProps.getProperty(prefix + "sqlazure_username", jSQLUser),
+              configProps.getProperty(prefix + "sqlazure_password", jSQLPassword))));
+    }
 
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    /* read replicas, searches and reservation listings go there when they are fresh enough */
+    for (Shard shard : shards) {
+      String prefix = shard.index() == 0 ? "flightservice.replica." : "flightservice.shard." + shard.index() + ".replica.";
+      final String replicaUrl = configProps.getProperty(prefix + "url", "").trim();
+      final String replicaUser = configProps.getProperty(prefix + "sqlazure_username", jSQLUser);
+      final String replicaPassword = configProps.getProperty(prefix + "sqlazure_password", jSQLPassword);
+      if (!replicaUrl.isEmpty()) {
+        shard.setReplica(new Shard(shard.index(), connect(replicaUrl, replicaUser, replicaPassword)));
+        if (shard.index() == 0) {
+          shard.replica().setPool(ConnectionPool.shared(replicaUrl, 0, searchPoolSize(),
+                  () -> connect(replicaUrl, replicaUser, replicaPassword)));
+        }
+      }
+    }
+
+    /* pooled connections to the flights database, for search legs that run in parallel */
+    final String url = jSQLUrl;
+    final String user = jSQLUser;
+    final String password = jSQLPassword;
+    shards.get(0).setPool(ConnectionPool.shared(url, 0, searchPoolSize(), () -> connect(url, user, password)));
+    String sessionDir = configProps.getProperty("flightservice.session_dir", "").trim();
+    long sessionIdleMillis = Long.parseLong(configProps.getProperty("flightservice.session_idle_ms", "1800000").trim());
+    sessions = sessionDir.isEmpty() ? inProcessSessions(sessionIdleMillis) : new FileSessionStore(sessionDir, sessionIdleMillis);
+
+    maxStalenessMillis = Long.parseLong(configProps.getProperty("flightservice.replica.max_staleness_ms", "5000").trim());
+    String soldOut = configProps.getProperty("flightservice.search.sold_out", "hide").trim();
+    searchSeats = soldOut.equals("show") ? null : seats;
+    hideSoldOut = soldOut.equals("hide");
+    router = new ShardRouter(shards);
+  }
+
+  private static synchronized InProcessSessionStore inProcessSessions(long idleMillis) {
+    if (inProcessSessions == null) {
+      inProcessSessions = new InProcessSessionStore(idleMillis);
+    }
+    return inProcessSessions;
+  }
+
+  private int searchPoolSize() {
+    return Integer.parseInt(configProps.getProperty("flightservice.search_pool_size", "8").trim());
+  }
+
+  private static Connection connect(String url, String user, String password) throws SQLException {
+    Connection connection = DriverManager.getConnection(url, // database
+            user, // user
+            password); // password
+
+    connection.setAutoCommit(true); //by default automatically commit after each statement
+
+    connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    return connection;
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    router.close();
   }
 
   /**
@@ -119,15 +240,24 @@ public class Query
    */
   public void clearTables () throws Exception
   {
+    if (journal != null) {
+      journal.drain();
+    }
     String clearUser = "TRUNCATE TABLE UserInfo";
     String clearReservation = "TRUNCATE TABLE Reserve";
-    String clearItineraries = "TRUNCATE TABLE Itineraries";
     String initializeReserve = "INSERT INTO Reserve (reserve_id, next_id) VALUES (0, 1)";
+    for (Shard shard : router.all()) {
+      Statement clearStatement = shard.connection().createStatement();
+      clearStatement.executeUpdate(clearUser);
+      clearStatement.executeUpdate(clearReservation);
+      clearStatement.close();
+    }
     Statement clearStatement = conn.createStatement();
-    clearStatement.executeUpdate(clearUser);
-    clearStatement.executeUpdate(clearReservation);
-    clearStatement.executeUpdate(clearItineraries);
     clearStatement.executeUpdate(initializeReserve);
+    if (journal != null) {
+      journal.setNextReservationId(1);
+    }
+    seats.clear();
   }
 
   /**
@@ -140,19 +270,225 @@ public class Query
     beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
     commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
     rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-    createUserStatement = conn.prepareStatement(CREATE_USER);
-    loginSearchStatement = conn.prepareStatement(LOGIN_SEARCH);
-    searchDirectStatement = conn.prepareStatement(SEARCH_DIRECT_FLIGHT);
-    searchOneStopStatement = conn.prepareStatement(SEARCH_ONE_STOP_FLIGHT);
     getInfoStatement = conn.prepareStatement(GET_INFO);
-    sortStatement = conn.prepareStatement(SORT);
-    makeReservationStatement = conn.prepareStatement(MAKE_RESERVATION);
-    updateReserveStatement = conn.prepareStatement(UPDATE_RESERVE);
-    findStatement = conn.prepareStatement(FIND_RESERVATION);
-    getFidsStatement = conn.prepareStatement(GET_FIDS);
-    verifyReserveStatement = conn.prepareStatement(VERIFY_RESERVATION);
-    updateBalanceStatement = conn.prepareStatement(UPDATE_BALANCE);
-    cancelReserveStatement = conn.prepareStatement(CANCEL_RESERVE);
+    loadDictionary();
+    openJournal();
+    configureAdmission();
+    loadSeats();
+    startFlightsRefresher();
+  }
+
+  // poll Flights for changed rows if flightservice.flights.refresh_ms is set, once per JVM
+  private void startFlightsRefresher() throws Exception {
+    if (journalWriter || background) {
+      return;
+    }
+    synchronized (Query.class) {
+      if (!flightsRefresherStarted) {
+        flightsRefresherStarted = true;
+        long interval = Long.parseLong(configProps.getProperty("flightservice.flights.refresh_ms", "0").trim());
+        if (interval > 0) {
+          Query poller = new Query(configFilename);
+          poller.background = true;
+          poller.openConnection();
+          poller.prepareStatements();
+          flightsRefresher = new FlightsRefresher(poller.conn, flightCache, dictionary, interval);
+          flightsRefresher.start();
+        }
+      }
+    }
+  }
+
+  // refresh lag and changed-row counts, null if flights are not being refreshed
+  public static synchronized FlightsRefresher flightsRefresher() {
+    return flightsRefresher;
+  }
+
+  // this process's flights refresh counts, for the stats command
+  public String transaction_stats() {
+    FlightsRefresher refresher = flightsRefresher();
+    if (refresher == null) {
+      return "Flights refresh is off\n";
+    }
+    return refresher.stats() + "\n";
+  }
+
+  // count the seats taken on every flight once per JVM, then recount them on an interval
+  // so bookings made by other processes show up
+  private void loadSeats() throws Exception {
+    if (journalWriter || background) {
+      return;
+    }
+    synchronized (Query.class) {
+      if (!seatsLoaded) {
+        seats.load(router.all());
+        seatsLoaded = true;
+        final long interval = Long.parseLong(configProps.getProperty("flightservice.seats.recount_ms", "60000").trim());
+        if (interval > 0) {
+          final Query counter = new Query(configFilename);
+          counter.background = true;
+          counter.openConnection();
+          counter.prepareStatements();
+          Thread thread = new Thread(() -> counter.recountSeats(interval), "seat-recount");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+    }
+  }
+
+  private void recountSeats(long interval) {
+    while (true) {
+      try {
+        Thread.sleep(interval);
+        seats.load(router.all());
+      } catch (SQLException e) {
+        // keep the counts we have until the next recount
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  // set up admission control from the first configuration loaded in this JVM
+  private void configureAdmission() {
+    synchronized (Query.class) {
+      if (!admissionConfigured) {
+        admission = AdmissionController.fromConfig(configProps);
+        admissionConfigured = true;
+      }
+    }
+  }
+
+  private static AdmissionController.Gate searchGate() {
+    AdmissionController controller = admission;
+    return controller == null ? null : controller.search();
+  }
+
+  private static AdmissionController.Gate bookingGate() {
+    AdmissionController controller = admission;
+    return controller == null ? null : controller.booking();
+  }
+
+  // run the command if the gate admits it, OVERLOADED otherwise; no gate admits everything
+  private Reply admit(AdmissionController.Gate gate, Supplier<Reply> command) {
+    if (gate == null) {
+      return command.get();
+    }
+    if (!gate.acquire()) {
+      return Reply.of(Reply.OVERLOADED);
+    }
+    long start = System.nanoTime();
+    try {
+      return command.get();
+    } finally {
+      gate.release(System.nanoTime() - start);
+    }
+  }
+
+  // start the reservation journal if one is configured, once per JVM
+  private void openJournal() throws Exception {
+    String path = configProps.getProperty("flightservice.journal", "").trim();
+    if (journalWriter || background || path.isEmpty()) {
+      return;
+    }
+    synchronized (Query.class) {
+      if (journal == null) {
+        final Query writer = new Query(configFilename);
+        writer.journalWriter = true;
+        writer.openConnection();
+        writer.prepareStatements();
+        writer.loadAppliedLsn();
+        ReservationJournal opened = new ReservationJournal(new File(path), new ReservationJournal.Applier() {
+          public void apply(List<JournalRecord> batch) throws SQLException {
+            writer.applyJournal(batch);
+          }
+
+          public long appliedLsn() {
+            return writer.maxAppliedLsn();
+          }
+        });
+        opened.setNextReservationId(writer.readReservationId());
+        journal = opened;
+      }
+    }
+  }
+
+  // assign city and carrier ids once per JVM
+  private void loadDictionary() throws SQLException {
+    synchronized (dictionary) {
+      if (!dictionaryLoaded) {
+        dictionary.load(conn);
+        dictionaryLoaded = true;
+      }
+    }
+  }
+
+  // city and carrier names for the ids in Flight, loaded by prepareStatements
+  public static FlightDictionary dictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Resume the session with the given token, e.g. one started on another server.
+   * Its state is read from the session store the first time a command needs it.
+   */
+  public void attachSession(String token)
+  {
+    sessionToken = token;
+    session = null;
+  }
+
+  public String sessionToken()
+  {
+    return sessionToken;
+  }
+
+  // true if the session can be resumed by another process
+  public boolean sessionIsShared()
+  {
+    return sessions.isShared();
+  }
+
+  // forget the session's state, for a client that will not resume it
+  public void endSession()
+  {
+    try {
+      sessions.remove(sessionToken);
+    } catch (IOException e) {
+      // left for the store to expire
+    }
+    session = null;
+  }
+
+  // the session's state, loaded on first use
+  private SessionState session() {
+    if (session == null) {
+      try {
+        session = sessions.load(sessionToken);
+      } catch (IOException | IllegalArgumentException e) {
+        session = null;
+      }
+      if (session == null) {
+        session = new SessionState();
+      }
+    }
+    return session;
+  }
+
+  // write the session back so any server can pick it up
+  private void saveSession() {
+    try {
+      sessions.save(sessionToken, session());
+    } catch (IOException e) {
+      // the session still works on this server
+    }
+  }
+
+  // note a committed book / pay / cancel, so this session's later reads see it
+  private void recordWrite() {
+    session().lastWriteMillis = System.currentTimeMillis();
+    saveSession();
   }
 
   /**
@@ -168,25 +504,37 @@ public class Query
    */
   public String transaction_login(String username, String password)
   {
-    if (this.username == null){
+    Reply reply = login(username, password);
+    if (reply.ok()) {
+      return "Logged in as " + username + "\n";
+    } else if (reply.status == Reply.ALREADY_LOGGED_IN) {
+      return "User already logged in\n";
+    }
+    return "Login failed\n";
+  }
+
+  // login as data: OK, ALREADY_LOGGED_IN or FAILED
+  public Reply login(String username, String password) {
+    if (session().username == null){
       try {
-        loginSearchStatement.clearParameters();
+        PreparedStatement loginSearchStatement = router.forUser(username).statement(LOGIN_SEARCH);
         loginSearchStatement.setString(1, username);
         ResultSet result = loginSearchStatement.executeQuery();
         result.next();
         String result_password = result.getString("password");
         result.close();
         if (password.equalsIgnoreCase(result_password)){
-          this.username = username;
-          return "Logged in as " + username + "\n";
+          session().username = username;
+          saveSession();
+          return Reply.of(Reply.OK);
         } else {
-          return "Login failed\n";
+          return Reply.of(Reply.FAILED);
         }
       } catch (SQLException e){
-        return "Login failed\n";
+        return Reply.of(Reply.FAILED);
       }
     }
-    return "User already logged in\n";
+    return Reply.of(Reply.ALREADY_LOGGED_IN);
   }
 
   /**
@@ -199,16 +547,24 @@ public class Query
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public String transaction_createCustomer (String username, String password, int initAmount) {
+    if (!createCustomer(username, password, initAmount).ok()) {
+      return "Failed to create user" + "\n";
+    }
+    return "Created user " + username + "\n";
+  }
+
+  // create user as data: OK or FAILED
+  public Reply createCustomer(String username, String password, int initAmount) {
     try {
-      createUserStatement.clearParameters();
+      PreparedStatement createUserStatement = router.forUser(username).statement(CREATE_USER);
       createUserStatement.setString(1, username);
       createUserStatement.setString(2, password);
       createUserStatement.setInt(3, initAmount);
       createUserStatement.executeUpdate();
     } catch (SQLException e) {
-      return "Failed to create user" + "\n";
+      return Reply.of(Reply.FAILED);
     }
-    return "Created user " + username + "\n";
+    return Reply.of(Reply.OK);
   }
 
   /**
@@ -244,103 +600,282 @@ public class Query
    * @see Flight#toString()
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    Reply reply = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    if (!reply.ok()) {
+      return "Failed to search\n";
+    }
+    if (reply.itineraries.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+    return renderItineraries(reply.itineraries);
+  }
+
+  // search as data: OK with the itineraries, numbered by their position, or FAILED
+  public Reply search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    return admit(searchGate(), () -> runSearch(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+  }
+
+  private Reply runSearch(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    int originId = dictionary.cityId(originCity);
+    int destId = dictionary.cityId(destinationCity);
+    // nothing can match, and TOP would reject a count below one
+    if (numberOfItineraries <= 0 || originId == FlightDictionary.UNKNOWN || destId == FlightDictionary.UNKNOWN) {
+      session().setItineraries(new ArrayList<Itinerary>());
+      saveSession();
+      return Reply.ofItineraries(Collections.<Itinerary>emptyList());
+    }
+    Shard home = router.home();
+    Shard source = null;
+    final long notBefore = session().lastWriteMillis;
+    Future<ItineraryCursor> oneStop = null;
+    ArrayList<Itinerary> found = new ArrayList<Itinerary>();
     try {
-      beginTransaction();
-      String clearItineraries = "TRUNCATE TABLE Itineraries";
-      Statement clearStatement = conn.createStatement();
-      clearStatement.executeUpdate(clearItineraries);
-      searchDirectFlight(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+      // hidden sold-out itineraries still count against TOP, so in hide mode each leg asks
+      // for one more row per flight the seat table knows is full that day; nothing sold out
+      // leaves it TOP k
+      final int limit = hideSoldOut ? numberOfItineraries + seats.fullOn(dayOfMonth) : numberOfItineraries;
+      // the one-stop leg runs on a pooled connection while the direct leg runs on this session's
       if (!directFlight) {
-        String checkCount = "SELECT COUNT(*) AS num FROM Itineraries";
-        Statement checkCountStatement = conn.createStatement();
-        ResultSet count = checkCountStatement.executeQuery(checkCount);
-        count.next();
-        int countResult = count.getInt("num");
-        count.close();
-        if (numberOfItineraries - countResult > 0){
-          searchOneStopFlight(originCity, destinationCity, dayOfMonth, numberOfItineraries - countResult);
+        oneStop = ShardRouter.workers().submit(() ->
+            openSearchCursor(SEARCH_ONE_STOP_FLIGHT, limit, originId, destId, dayOfMonth, notBefore));
+      }
+      source = beginReplicaRead(home, notBefore);
+      if (source == null) {
+        source = home;
+        source.beginTransaction();
+      }
+      // only when a leg hid rows past that, which needs flights the table had not seen full
+      // yet, is it asked again with a wider limit
+      int fetch = limit;
+      while (searchDirectFlight(source, originId, destId, dayOfMonth, fetch, numberOfItineraries, found) == fetch
+             && found.size() < numberOfItineraries) {
+        found.clear();
+        fetch *= 2;
+      }
+      source.commitTransaction();
+      source = null;
+      if (oneStop != null) {
+        ItineraryCursor cursor = awaitCursor(oneStop);
+        oneStop = null;
+        int quota = numberOfItineraries - found.size();
+        fetch = limit;
+        ArrayList<Itinerary> merged = mergeItineraries(found, cursor, quota);
+        while (cursor.rowsRead() == fetch && merged.size() - found.size() < quota) {
+          fetch *= 2;
+          cursor = openSearchCursor(SEARCH_ONE_STOP_FLIGHT, fetch, originId, destId, dayOfMonth, notBefore);
+          merged = mergeItineraries(found, cursor, quota);
         }
+        found = merged;
       }
-      commitTransaction();
     } catch (SQLException e) {
-      return "Failed to search\n";
+      rollbackQuietly(source);
+      closeQuietly(oneStop);
+      return Reply.of(Reply.FAILED);
     }
-    String answer = parseItineraries();
-    if (answer.isEmpty()) {
-      return "No flights match your selection\n";
+    session().setItineraries(found);
+    saveSession();
+    return Reply.ofItineraries(Collections.unmodifiableList(found));
+  }
+
+  // sorted by total time, then by fids
+  private static final Comparator<Itinerary> ITINERARY_ORDER = Comparator.comparingInt((Itinerary i) -> i.totalTime)
+      .thenComparingInt(i -> i.fid1).thenComparingInt(i -> i.fid2);
+
+  // add direct flights to the list, already in ITINERARY_ORDER, until it holds wanted, reading at
+  // most fetch rows and leaving out sold-out ones in hide mode; returns the number of rows read
+  private int searchDirectFlight(Shard shard, int originId, int destId, int dayOfMonth, int fetch, int wanted,
+                                 List<Itinerary> found) throws SQLException {
+    PreparedStatement searchDirectStatement = shard.statement(SEARCH_DIRECT_FLIGHT);
+    bindSearch(searchDirectStatement, fetch, originId, destId, dayOfMonth);
+    ResultSet result = searchDirectStatement.executeQuery();
+    int rows = 0;
+    while (found.size() < wanted && result.next()) {
+      rows++;
+      Itinerary itinerary = ItineraryCursor.read(result, searchSeats, dayOfMonth);
+      if (!(hideSoldOut && itinerary.soldOut)) {
+        found.add(itinerary);
+      }
     }
-    return answer;
+    result.close();
+    return rows;
   }
 
-  // find direct flight and add it to itineraries table
-  private void searchDirectFlight(String originCity, String destinationCity, int dayOfMonth, int numberOfItineraries) {
+  private void bindSearch(PreparedStatement statement, int number, int originId, int destId, int dayOfMonth) throws SQLException {
+    statement.setInt(1, number);
+    statement.setString(2, dictionary.cityName(originId));
+    statement.setString(3, dictionary.cityName(destId));
+    statement.setInt(4, dayOfMonth);
+  }
+
+  // start a search query on a pooled connection, the replica's if it is fresh enough,
+  // and return a cursor over its rows as they arrive
+  private ItineraryCursor openSearchCursor(String sql, int number, int originId, int destId, int dayOfMonth,
+                                          long notBefore) throws SQLException {
+    Shard home = router.home();
+    ConnectionPool pool = null;
+    Shard shard = null;
+    if (home.replica() != null) {
+      pool = home.replica().pool();
+      shard = pool.borrow();
+      try {
+        if (!beginFreshRead(shard, notBefore)) {
+          pool.release(shard);
+          shard = null;
+        }
+      } catch (SQLException e) {
+        pool.discard(shard);
+        shard = null;
+      }
+    }
+    if (shard == null) {
+      pool = home.pool();
+      shard = pool.borrow();
+      try {
+        shard.beginTransaction();
+      } catch (SQLException e) {
+        pool.discard(shard);
+        throw e;
+      }
+    }
     try {
-      searchDirectStatement.clearParameters();
-      searchDirectStatement.setInt(1, numberOfItineraries);
-      searchDirectStatement.setString(2, originCity);
-      searchDirectStatement.setString(3, destinationCity);
-      searchDirectStatement.setInt(4, dayOfMonth);
-      searchDirectStatement.executeUpdate();
-    } catch (SQLException e) {}
+      PreparedStatement statement = shard.statement(sql);
+      bindSearch(statement, number, originId, destId, dayOfMonth);
+      return new ItineraryCursor(pool, shard, statement, statement.executeQuery(), searchSeats, hideSoldOut, dayOfMonth);
+    } catch (SQLException e) {
+      pool.discard(shard);
+      throw e;
+    }
   }
 
-  // find indirect flight and add it to tineraries table
-  private void searchOneStopFlight(String originCity, String destinationCity, int dayOfMonth, int number) {
+  private ItineraryCursor awaitCursor(Future<ItineraryCursor> pending) throws SQLException {
     try {
-      searchOneStopStatement.clearParameters();
-      searchOneStopStatement.setInt(1, number);
-      searchOneStopStatement.setString(2, originCity);
-      searchOneStopStatement.setString(3, destinationCity);
-      searchOneStopStatement.setInt(4, dayOfMonth);
-      searchOneStopStatement.executeUpdate();
-    } catch (SQLException e) {}
+      return pending.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted during search", e);
+    }
+  }
+
+  private void closeQuietly(Future<ItineraryCursor> pending) {
+    if (pending != null) {
+      try {
+        awaitCursor(pending).close();
+      } catch (SQLException ignored) {}
+    }
   }
 
-  // put the fid into arraylist and create the itineraries result
-  private String parseItineraries() {
-    String answer = "";
-    itineraries = new ArrayList<String>();
+  /** Itineraries read one at a time, in ITINERARY_ORDER. */
+  interface ItinerarySource
+  {
+    // next itinerary, or null when there are no more
+    Itinerary next() throws SQLException;
+  }
+
+  // merge from the cursor, then close it: as soon as the quota is filled, the rest of its query is canceled
+  private static ArrayList<Itinerary> mergeItineraries(List<Itinerary> direct, ItineraryCursor oneStop, int quota) throws SQLException {
     try {
-      ResultSet flightBasicInfo = sortStatement.executeQuery();
-      int intNum = 0;
-      while (flightBasicInfo.next()) {
-        int flight1 = flightBasicInfo.getInt("flight_1");
-        int flight2 = flightBasicInfo.getInt("flight_2");
-        int time = flightBasicInfo.getInt("total_time");
-        if (flight2 == 0) {
-          answer += "Itinerary " + intNum + ": 1 flight(s), " + time + " minutes\n";
-          answer += getFlightDetails(flight1);
-          itineraries.add(flight1 + " 0");
-          intNum++;
-        } else {
-          answer += "Itinerary " + intNum + ": 2 flight(s), " + time + " minutes\n";
-          answer += getFlightDetails(flight1);
-          answer += getFlightDetails(flight2);
-          itineraries.add(flight1 + " " + flight2);
-          intNum++;
-        }
+      return mergeItineraries(direct, oneStop::next, quota);
+    } finally {
+      oneStop.close();
+    }
+  }
+
+  // merge the direct itineraries with the first quota one-stop itineraries from the source.
+  // Both are in ITINERARY_ORDER, so the result is too, the same list the old search got by
+  // sorting the two query results together; the source is not read past the quota
+  static ArrayList<Itinerary> mergeItineraries(List<Itinerary> direct, ItinerarySource oneStop, int quota) throws SQLException {
+    ArrayList<Itinerary> merged = new ArrayList<Itinerary>(direct.size() + Math.max(quota, 0));
+    int nextDirect = 0;
+    int taken = 0;
+    Itinerary next = quota > 0 ? oneStop.next() : null;
+    while (nextDirect < direct.size() || next != null) {
+      if (next != null && (nextDirect == direct.size() || ITINERARY_ORDER.compare(next, direct.get(nextDirect)) < 0)) {
+        merged.add(next);
+        taken++;
+        next = taken < quota ? oneStop.next() : null;
+      } else {
+        merged.add(direct.get(nextDirect++));
       }
-    } catch (SQLException e) {}
-    return answer;
+    }
+    return merged;
+  }
+
+  // render itineraries in the search output format
+  private String renderItineraries(List<Itinerary> itineraries) {
+    StringBuilder answer = new StringBuilder();
+    for (int intNum = 0; intNum < itineraries.size(); intNum++) {
+      Itinerary itinerary = itineraries.get(intNum);
+      answer.append("Itinerary ").append(intNum).append(": ").append(itinerary.numFlights())
+            .append(" flight(s), ").append(itinerary.totalTime).append(" minutes");
+      if (itinerary.soldOut) {
+        answer.append(" (sold out)");
+      }
+      answer.append("\n");
+      appendFlightDetails(answer, itinerary.fid1);
+      appendFlightDetails(answer, itinerary.fid2);
+    }
+    return answer.toString();
+  }
+
+  // begin a snapshot read on the shard's replica if it has copied everything up to notBefore,
+  // the session's last write, and is within the staleness tolerance; null, with nothing
+  // begun, if the primary has to be read instead
+  private Shard beginReplicaRead(Shard primary, long notBefore) throws SQLException {
+    Shard replica = primary.replica();
+    if (replica == null) {
+      return null;
+    }
+    try {
+      return beginFreshRead(replica, notBefore) ? replica : null;
+    } catch (SQLException e) {
+      // an unreachable replica just sends the read to the primary
+      rollbackQuietly(replica);
+      return null;
+    }
+  }
+
+  // begin a snapshot read on the replica; if it is too stale for this session, end it and return false
+  private boolean beginFreshRead(Shard replica, long notBefore) throws SQLException {
+    replica.beginSnapshotTransaction();
+    long replicatedAt = replica.replicatedAt();
+    if (replicatedAt >= notBefore && System.currentTimeMillis() - replicatedAt <= maxStalenessMillis) {
+      return true;
+    }
+    replica.rollbackTransaction();
+    return false;
   }
 
-  // get the details of the flight
-  private String getFlightDetails(int fid) {
+  // append the details of the flight
+  private void appendFlightDetails(StringBuilder out, int fid) {
+    Flight flight = getFlight(fid);
+    if (flight != null) {
+      flight.render(out, dictionary);
+    }
+  }
+
+  // look the flight up in the cache, loading it on first use; null if there is no such flight
+  public Flight getFlight(int fid) {
     if (fid == 0) {
-      return "";
+      return null;
+    }
+    Flight flight = flightCache.get(fid);
+    if (flight != null) {
+      return flight;
     }
-    String details = "";
     try {
       getInfoStatement.clearParameters();
       getInfoStatement.setInt(1, fid);
       ResultSet info = getInfoStatement.executeQuery();
-      info.next();
-      details += "ID: " + info.getInt("fid") + " Day: " + info.getInt("day_of_month") + " Carrier: " + info.getString("carrier_id") +
-                " Number: " + info.getInt("flight_num") + " Origin: " + info.getString("origin_city") + " Dest: " + info.getString("dest_city") + " Duration: " + info.getInt("actual_time") +
-                " Capacity: " + info.getInt("capacity") + " Price: " + info.getInt("price") + "\n";
+      if (info.next()) {
+        // the refresher may have put a newer copy in while this one was read
+        Flight cached = flightCache.putIfAbsent(fid, Flight.read(info, dictionary));
+        flight = cached == null ? flightCache.get(fid) : cached;
+      }
       info.close();
     } catch (SQLException e) {}
-    return details;
+    return flight;
   }
 
   /**
@@ -359,104 +894,167 @@ public class Query
    * successful reservation is made by any user in the system.
    */
   public String transaction_book(int itineraryId) {
-    if (username == null) {
+    Reply reply = book(itineraryId);
+    if (reply.ok()) {
+      return "Booked flight(s), reservation ID: " + reply.value(0) + "\n";
+    } else if (reply.status == Reply.NOT_LOGGED_IN) {
       return "Cannot book reservations, not logged in\n";
-    } else if (itineraries == null || itineraryId >= itineraries.size()) {
+    } else if (reply.status == Reply.NO_SUCH_ITINERARY) {
       return "No such itinerary " + itineraryId + "\n";
+    } else if (reply.status == Reply.SAME_DAY) {
+      return "You cannot book two flights in the same day\n";
+    }
+    return "Booking failed\n";
+  }
+
+  // book as data: OK with the reservation id, NOT_LOGGED_IN, NO_SUCH_ITINERARY, SAME_DAY or FAILED
+  public Reply book(int itineraryId) {
+    return runBook(itineraryId);
+  }
+
+  // the booking gate is only held around the database work, after any wait for the flights,
+  // so its latency target measures the work and not the queue for a popular flight
+  private Reply runBook(int itineraryId) {
+    if (session().username == null) {
+      return Reply.of(Reply.NOT_LOGGED_IN);
+    }
+    ArrayList<Itinerary> itineraries = session().itineraries();
+    if (itineraries == null || itineraryId < 0 || itineraryId >= itineraries.size()) {
+      return Reply.of(Reply.NO_SUCH_ITINERARY);
+    }
+    Itinerary itinerary = itineraries.get(itineraryId);
+    int fidOne = itinerary.fid1;
+    int fidTwo = itinerary.fid2;
+    Flight first = getFlight(fidOne);
+    Flight second = getFlight(fidTwo);
+    if (first == null || first.canceled || (second != null && second.canceled)) {
+      return Reply.of(Reply.FAILED);
     }
-    String[] fids = itineraries.get(itineraryId).split(" ", 2);
-    int fidOne = Integer.parseInt(fids[0]);
-    int fidTwo = Integer.parseInt(fids[1]);
+    // both legs fly the same day, so the whole booking lives on that day's shard
+    Shard shard = router.forDay(first.dayOfMonth);
+    if (journal != null) {
+      return admit(bookingGate(), () -> journaledBook(shard, fidOne, fidTwo, first.dayOfMonth));
+    }
+    // bookings for the same flight take turns rather than deadlock in the database
+    FlightLocks flights = admission == null ? null : admission.flights();
+    if (flights == null) {
+      return admit(bookingGate(), () -> transactionalBook(shard, fidOne, fidTwo, first.dayOfMonth));
+    }
+    if (!flights.lock(fidOne, fidTwo)) {
+      return Reply.of(Reply.OVERLOADED);
+    }
+    try {
+      return admit(bookingGate(), () -> transactionalBook(shard, fidOne, fidTwo, first.dayOfMonth));
+    } finally {
+      flights.unlock(fidOne, fidTwo);
+    }
+  }
+
+  private Reply transactionalBook(Shard shard, int fidOne, int fidTwo, int dayOfMonth) {
     int reservationId = 0;
     try {
-      beginTransaction();
-      if (checkDate(fidOne)) {
-        rollbackTransaction();
-        return "You cannot book two flights in the same day\n";
+      shard.beginTransaction();
+      if (checkDate(shard, dayOfMonth, NO_PENDING)) {
+        shard.rollbackTransaction();
+        return Reply.of(Reply.SAME_DAY);
       }
       if (fidTwo == 0) {
-        if (checkCapacity(fidOne)) {
-          rollbackTransaction();
-          return "Booking failed\n";
+        if (checkCapacity(shard, fidOne, NO_PENDING)) {
+          shard.rollbackTransaction();
+          return Reply.of(Reply.FAILED);
         }
       } else {
-        if (checkCapacity(fidOne) || checkCapacity(fidTwo)) {
-          rollbackTransaction();
-          return "Booking failed\n";
+        if (checkCapacity(shard, fidOne, NO_PENDING) || checkCapacity(shard, fidTwo, NO_PENDING)) {
+          shard.rollbackTransaction();
+          return Reply.of(Reply.FAILED);
         }
       }
-      reservationId = makeReservation(fidOne, fidTwo);
-      commitTransaction();
+      reservationId = makeReservation(shard, fidOne, fidTwo, dayOfMonth);
+      shard.commitTransaction();
+      seats.booked(fidOne, fidTwo);
+      recordWrite();
     } catch (SQLException e) {
-      return "Booking failed\n";
+      rollbackQuietly(shard);
+      return Reply.of(Reply.FAILED);
     }
-    return "Booked flight(s), reservation ID: " + reservationId + "\n";
+    return Reply.of(Reply.OK, reservationId);
   }
 
-  // return the reservation id so it can be used later
-  private int makeReservation(int fid1, int fid2) {
-    int currentId = 0;
-    int date = 0;
-    String getId = "SELECT MAX(next_id) AS nextId FROM Reserve";
-    String getDate = "SELECT day_of_month FROM Flights WHERE fid = " + fid1;
-    try {
-      Statement getIdStatement = conn.createStatement();
-      ResultSet nextIdSet = getIdStatement.executeQuery(getId);
-      nextIdSet.next();
-      currentId = nextIdSet.getInt("nextId");
-      nextIdSet.close();
-      Statement getDateStatement = conn.createStatement();
-      ResultSet nextDaySet = getDateStatement.executeQuery(getDate);
-      nextDaySet.next();
-      date = nextDaySet.getInt("day_of_month");
-      nextDaySet.close();
-      makeReservationStatement.clearParameters();
-      makeReservationStatement.setInt(1, currentId);
-      makeReservationStatement.setString(2, username);
-      makeReservationStatement.setInt(3, fid1);
-      makeReservationStatement.setInt(4, fid2);
-      makeReservationStatement.setInt(5, date);
-      makeReservationStatement.setInt(6, 0);
-      makeReservationStatement.setInt(7, currentId + 1);
-      makeReservationStatement.executeUpdate();
-    } catch (SQLException e) {}
+  // insert the reservation and return its id so it can be used later
+  private int makeReservation(Shard shard, int fid1, int fid2, int date) throws SQLException {
+    int currentId = nextReservationId();
+    insertReservation(shard, currentId, session().username, fid1, fid2, date);
     return currentId;
   }
 
-  // return true if there's date conflict
-  private boolean checkDate(int fid) {
-    // use username field to access username
-    String checkDateQuery = "SELECT reserve_id FROM Reserve WHERE username = '" + username + "' AND flight_date = (SELECT day_of_month FROM Flights WHERE fid = " + fid + ")";
-    try {
-      Statement checkDateStatement = conn.createStatement();
-      ResultSet result = checkDateStatement.executeQuery(checkDateQuery);
-      result.next();
-      result.getInt("reserve_id");
-    } catch (SQLException e) {
-      return false;
+  private void insertReservation(Shard shard, int reservationId, String user, int fid1, int fid2, int date) throws SQLException {
+    PreparedStatement makeReservationStatement = shard.statement(MAKE_RESERVATION);
+    makeReservationStatement.setInt(1, reservationId);
+    makeReservationStatement.setString(2, user);
+    makeReservationStatement.setInt(3, fid1);
+    makeReservationStatement.setInt(4, fid2);
+    makeReservationStatement.setInt(5, date);
+    makeReservationStatement.setInt(6, 0);
+    makeReservationStatement.setInt(7, reservationId + 1);
+    makeReservationStatement.executeUpdate();
+  }
+
+  // take the next id from the counter row on the home shard. The counter update is
+  // a single statement, so when the home shard is not the one being booked on it
+  // commits on its own and never holds a lock across shards; an id is only lost if
+  // the booking fails after every check has passed.
+  private int nextReservationId() throws SQLException {
+    ResultSet nextIdSet = router.home().statement(NEXT_RESERVATION_ID).executeQuery();
+    nextIdSet.next();
+    int nextId = nextIdSet.getInt("nextId");
+    nextIdSet.close();
+    return nextId;
+  }
+
+  // return true if there's date conflict, counting journal records not yet applied
+  private boolean checkDate(Shard shard, int dayOfMonth, List<JournalRecord> pending) throws SQLException {
+    PreparedStatement checkDateStatement = shard.statement(CHECK_DATE);
+    checkDateStatement.setString(1, session().username);
+    checkDateStatement.setInt(2, dayOfMonth);
+    ResultSet result = checkDateStatement.executeQuery();
+    boolean conflict = false;
+    while (!conflict && result.next()) {
+      conflict = pendingRecord(pending, JournalRecord.CANCEL, result.getInt("reserve_id")) == null;
     }
-    return true;
+    result.close();
+    for (JournalRecord record : pending) {
+      if (record.op == JournalRecord.BOOK && record.dayOfMonth == dayOfMonth && record.username.equalsIgnoreCase(session().username)
+          && pendingRecord(pending, JournalRecord.CANCEL, record.reservationId) == null) {
+        conflict = true;
+      }
+    }
+    return conflict;
   }
 
-  // return true if there's capacity conflict
-  private boolean checkCapacity(int fid) {
-    String checkCapacityQueryOne = "SELECT count(*) AS reserved FROM Reserve WHERE fid1 = " + fid + " OR fid2 = " + fid;
-    String checkCapacityQueryTwo = "SELECT capacity FROM Flights WHERE fid = " + fid;
-    int reserved = 0;
-    int capacity = 0;
-    try {
-      Statement getReserved = conn.createStatement();
-      ResultSet resultOne = getReserved.executeQuery(checkCapacityQueryOne);
-      resultOne.next();
-      reserved = resultOne.getInt("reserved");
-      resultOne.close();
-      /*****************/
-      Statement getCapacity = conn.createStatement();
-      ResultSet resultTwo = getCapacity.executeQuery(checkCapacityQueryTwo);
-      resultTwo.next();
-      capacity = resultTwo.getInt("capacity");
-      resultTwo.close();
-    } catch (SQLException e) {}
+  // return true if there's capacity conflict, counting journal records not yet applied
+  private boolean checkCapacity(Shard shard, int fid, List<JournalRecord> pending) throws SQLException {
+    Flight flight = getFlight(fid);
+    int capacity = flight == null ? 0 : flight.capacity;
+    PreparedStatement getReserved = shard.statement(COUNT_RESERVED);
+    getReserved.setInt(1, fid);
+    getReserved.setInt(2, fid);
+    ResultSet result = getReserved.executeQuery();
+    result.next();
+    int reserved = result.getInt("reserved");
+    result.close();
+    for (JournalRecord record : pending) {
+      if (record.hasFlight(fid)) {
+        if (record.op == JournalRecord.BOOK) {
+          reserved++;
+        } else if (record.op == JournalRecord.CANCEL) {
+          reserved--;
+        }
+      }
+    }
+    seats.observed(fid, reserved);
+    if (capacity <= reserved && flight != null) {
+      seats.full(fid, flight.dayOfMonth);
+    }
     return capacity <= reserved;
   }
 
@@ -482,34 +1080,87 @@ public class Query
    * @see Flight#toString()
    */
   public String transaction_reservations() {
-    if (username == null) {
+    Reply reply = reservations();
+    if (reply.status == Reply.NOT_LOGGED_IN) {
       return "Cannot view reservations, not logged in\n";
     }
-    String getReservation = "SELECT reserve_id, paid, fid1, fid2 FROM Reserve WHERE username = '" + username + "'";
-    String answer = "";
+    if (!reply.ok()) {
+      return "Failed to retrieve reservations\n";
+    }
+    if (reply.reservations.isEmpty()) {
+      return "No reservations found\n";
+    }
+    StringBuilder answer = new StringBuilder();
+    for (Reservation reservation : reply.reservations) {
+      answer.append("Reservation ").append(reservation.reservationId).append(" paid: ").append(reservation.paid).append(":\n");
+      appendFlightDetails(answer, reservation.fid1);
+      appendFlightDetails(answer, reservation.fid2);
+    }
+    return answer.toString();
+  }
+
+  // reservations as data: OK with the reservations in id order, NOT_LOGGED_IN or FAILED
+  public Reply reservations() {
+    return admit(searchGate(), () -> runReservations());
+  }
+
+  private Reply runReservations() {
+    if (session().username == null) {
+      return Reply.of(Reply.NOT_LOGGED_IN);
+    }
+    // a user's reservations are spread over the day shards, ask them all at once
+    if (journal != null) {
+      // each shard's rows are read with the pending records it has not applied, so the
+      // listing needs no lock to count every record once
+      return listReservations(journal.pending());
+    }
+    return listReservations(null);
+  }
+
+  // list the user's reservations as they will be once the pending journal records are
+  // applied; pending is null without a journal
+  private Reply listReservations(final List<JournalRecord> pending) {
+    final String user = session().username;
+    final long notBefore = session().lastWriteMillis;
+    List<Reservation> reservations = new ArrayList<Reservation>();
     try {
-      Statement getReservationStatement = conn.createStatement();
-      ResultSet result = getReservationStatement.executeQuery(getReservation);
-      while (result.next()) {
-        answer += "Reservation " + result.getInt("reserve_id") + " paid: " + trueOrFalse(result.getInt("paid")) + ":\n";
-        answer += getFlightDetails(result.getInt("fid1"));
-        answer += getFlightDetails(result.getInt("fid2"));
+      List<List<Reservation>> perShard = router.scatter(shard -> {
+        if (pending != null) {
+          // pending journal records are only retired once they reach the primary, so
+          // journal mode always lists from the primaries
+          return readUnapplied(shard, pending, reservedOn(shard), unapplied -> {
+            List<Reservation> rows = readReservations(shard, user);
+            overlayReservations(rows, unapplied, user);
+            return rows;
+          });
+        }
+        Shard replica = beginReplicaRead(shard, notBefore);
+        List<Reservation> rows = readReservations(replica == null ? shard : replica, user);
+        if (replica != null) {
+          replica.commitTransaction();
+        }
+        return rows;
+      });
+      for (List<Reservation> rows : perShard) {
+        reservations.addAll(rows);
       }
     } catch (SQLException e) {
-        return "Failed to retrieve reservations\n";
+        return Reply.of(Reply.FAILED);
     }
-    if (answer.equals("")) {
-      return "No reservations found\n";
-    }
-    return answer;
+    reservations.sort(Comparator.comparingInt(reservation -> reservation.reservationId));
+    return Reply.ofReservations(reservations);
   }
 
-  // return "true" if passed in 1, or return "false"
-  private String trueOrFalse(int num) {
-    if (num == 1) {
-      return "true";
+  private List<Reservation> readReservations(Shard source, String user) throws SQLException {
+    List<Reservation> rows = new ArrayList<Reservation>();
+    PreparedStatement getReservationStatement = source.statement(LIST_RESERVATIONS);
+    getReservationStatement.setString(1, user);
+    ResultSet result = getReservationStatement.executeQuery();
+    while (result.next()) {
+      rows.add(new Reservation(result.getInt("reserve_id"), result.getInt("paid") == 1, result.getInt("fid1"), result.getInt("fid2")));
     }
-    return "false";
+    result.close();
+    return rows;
   }
 
   /**
@@ -528,89 +1179,133 @@ public class Query
    * where [balance] is the remaining balance in the user's account.
    */
   public String transaction_pay (int reservationId) {
+    Reply reply = pay(reservationId);
+    if (reply.ok()) {
+      return "Paid reservation: " + reservationId + " remaining balance: " + reply.value(0) + "\n";
+    } else if (reply.status == Reply.NOT_LOGGED_IN) {
+      return "Cannot pay, not logged in\n";
+    } else if (reply.status == Reply.NOT_FOUND) {
+      return "Cannot find unpaid reservation " + reservationId + " under user: " + session().username + "\n";
+    } else if (reply.status == Reply.INSUFFICIENT_FUNDS) {
+      return "User has only " + reply.value(0) + " in account but itinerary costs " + reply.value(1) + "\n";
+    }
+    return "Failed to pay for reservation " + reservationId + "\n";
+  }
+
+  // pay as data: OK with the remaining balance, NOT_LOGGED_IN, NOT_FOUND,
+  // INSUFFICIENT_FUNDS with the balance and the cost, or FAILED
+  public Reply pay(int reservationId) {
+    return admit(bookingGate(), () -> runPay(reservationId));
+  }
+
+  private Reply runPay(int reservationId) {
     int balance = 0;
     int total = 0;
+    if (session().username == null) {
+      return Reply.of(Reply.NOT_LOGGED_IN);
+    }
+    if (journal != null) {
+      return journaledPay(reservationId);
+    }
+    List<Shard> involved = null;
     try {
-      if (username == null) {
-        return "Cannot pay, not logged in\n";
-      }
-      beginTransaction();
-      if (findReservation(reservationId)) {
-        rollbackTransaction();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
-      }
-      String getBalance = "SELECT balance FROM UserInfo WHERE username = '" + username + "'";
-      total = getSum(reservationId);
-      Statement getBalanceStatement = conn.createStatement();
-      ResultSet balanceSet = getBalanceStatement.executeQuery(getBalance);
-      balanceSet.next();
-      balance = balanceSet.getInt("balance");
-      balanceSet.close();
+      Shard reserveShard = locateReservation(reservationId);
+      if (reserveShard == null) {
+        return Reply.of(Reply.NOT_FOUND);
+      }
+      Shard userShard = router.forUser(session().username);
+      involved = shardsOf(reserveShard, userShard);
+      beginTransaction(involved);
+      if (findReservation(reserveShard, reservationId)) {
+        rollbackTransaction(involved);
+        return Reply.of(Reply.NOT_FOUND);
+      }
+      total = getSum(reserveShard, reservationId);
+      balance = getBalance(userShard);
       if (balance < total) {
-        rollbackTransaction();
-        return "User has only " + balance + " in account but itinerary costs " + total + "\n";
+        rollbackTransaction(involved);
+        return Reply.of(Reply.INSUFFICIENT_FUNDS, balance, total);
       }
-      payItinerary(reservationId, balance, total);
-      commitTransaction();
+      payItinerary(reserveShard, userShard, reservationId, balance - total);
+      commitAcrossShards(userShard, reserveShard, reservationId, JournalRecord.PAY, -total);
+      recordWrite();
     } catch (SQLException e) {
-      return "Failed to pay for reservation " + reservationId + "\n";
+      rollbackQuietly(involved);
+      return Reply.of(Reply.FAILED);
     }
-    return "Paid reservation: " + reservationId + " remaining balance: " + (balance - total) + "\n";
+    return Reply.of(Reply.OK, balance - total);
   }
 
-  // run the query and return the remaining balance
-  private void payItinerary(int reserveId, int balance, int total) {
-    String updateUser = "UPDATE UserInfo SET balance = " + (balance - total) + " WHERE username = '" + username + "'";
-    try {
-      Statement payStatement = conn.createStatement();
-      payStatement.executeUpdate(updateUser);
-      updateReserveStatement.clearParameters();
-      updateReserveStatement.setInt(1, 1);
-      updateReserveStatement.setInt(2, reserveId);
-      updateReserveStatement.executeUpdate();
-    } catch (SQLException e) {}
+  private int getBalance(Shard userShard) throws SQLException {
+    PreparedStatement getBalanceStatement = userShard.statement(GET_BALANCE);
+    getBalanceStatement.setString(1, session().username);
+    ResultSet balanceSet = getBalanceStatement.executeQuery();
+    balanceSet.next();
+    int balance = balanceSet.getInt("balance");
+    balanceSet.close();
+    return balance;
+  }
+
+  // set the remaining balance and mark the reservation paid
+  private void payItinerary(Shard reserveShard, Shard userShard, int reserveId, int remaining) throws SQLException {
+    PreparedStatement payStatement = userShard.statement(SET_BALANCE);
+    payStatement.setInt(1, remaining);
+    payStatement.setString(2, session().username);
+    payStatement.executeUpdate();
+    PreparedStatement updateReserveStatement = reserveShard.statement(UPDATE_RESERVE);
+    updateReserveStatement.setInt(1, 1);
+    updateReserveStatement.setInt(2, reserveId);
+    updateReserveStatement.executeUpdate();
   }
 
   // return true if the reservation not found
   // also return ture if the reservation is paid
-  private boolean findReservation(int reservationId) {
-    try {
-      findStatement.clearParameters();
-      findStatement.setString(1, username);
-      findStatement.setInt(2, reservationId);
-      ResultSet findResult = findStatement.executeQuery();
-      findResult.next();
-      findResult.getInt("reserve_id");
-      findResult.close();
-    } catch (SQLException e) {
-      return true;
+  private boolean findReservation(Shard shard, int reservationId) throws SQLException {
+    PreparedStatement findStatement = shard.statement(FIND_RESERVATION);
+    findStatement.setString(1, session().username);
+    findStatement.setInt(2, reservationId);
+    ResultSet findResult = findStatement.executeQuery();
+    boolean found = findResult.next();
+    findResult.close();
+    return !found;
+  }
+
+  // return the shard holding the reservation, or null if no shard has it
+  private Shard locateReservation(final int reservationId) throws SQLException {
+    if (router.size() == 1) {
+      return router.home();
     }
-    return false;
+    List<Boolean> holds = router.scatter(shard -> {
+      PreparedStatement locateStatement = shard.statement(LOCATE_RESERVATION);
+      locateStatement.setInt(1, reservationId);
+      ResultSet result = locateStatement.executeQuery();
+      boolean found = result.next();
+      result.close();
+      return found;
+    });
+    int index = holds.indexOf(Boolean.TRUE);
+    return index < 0 ? null : router.all().get(index);
   }
 
-  private int getSum(int reservationId) {
+  private int getSum(Shard shard, int reservationId) throws SQLException {
+    PreparedStatement getFidsStatement = shard.statement(GET_FIDS);
+    getFidsStatement.setInt(1, reservationId);
+    ResultSet fids = getFidsStatement.executeQuery();
+    fids.next();
+    int fid1 = fids.getInt("fid1");
+    int fid2 = fids.getInt("fid2");
+    fids.close();
+    return getSum(fid1, fid2);
+  }
+
+  private int getSum(int fid1, int fid2) {
     int sum = 0;
-    String getPrice = "SELECT price FROM Flights WHERE fid = ";
-    try {
-      getFidsStatement.clearParameters();
-      getFidsStatement.setInt(1, reservationId);
-      Statement getSumStatement = conn.createStatement();
-      ResultSet fids = getFidsStatement.executeQuery();
-      fids.next();
-      int fid1 = fids.getInt("fid1");
-      int fid2 = fids.getInt("fid2");
-      fids.close();
-      ResultSet fidPrice = getSumStatement.executeQuery(getPrice + fid1);
-      fidPrice.next();
-      sum += fidPrice.getInt("price");
-      fidPrice.close();
-      if (fid2 != 0) {
-        fidPrice = getSumStatement.executeQuery(getPrice + fid2);
-        fidPrice.next();
-        sum += fidPrice.getInt("price");
-        fidPrice.close();
+    for (int fid : new int[] {fid1, fid2}) {
+      Flight flight = getFlight(fid);
+      if (flight != null) {
+        sum += flight.price;
       }
-    } catch (SQLException e) {}
+    }
     return sum;
   }
 
@@ -628,53 +1323,498 @@ public class Query
    * Even though a reservation has been canceled, its ID should not be reused by the system.
    */
   public String transaction_cancel(int reservationId) {
-    if (username == null) {
+    Reply reply = cancel(reservationId);
+    if (reply.ok()) {
+      return "Canceled reservation " + reservationId + "\n";
+    } else if (reply.status == Reply.NOT_LOGGED_IN) {
       return "Cannot cancel reservations, not logged in\n";
     }
+    return "Failed to cancel reservation " + reservationId + "\n";
+  }
+
+  // cancel as data: OK, NOT_LOGGED_IN or FAILED
+  public Reply cancel(int reservationId) {
+    return admit(bookingGate(), () -> runCancel(reservationId));
+  }
+
+  private Reply runCancel(int reservationId) {
+    if (session().username == null) {
+      return Reply.of(Reply.NOT_LOGGED_IN);
+    }
+    if (journal != null) {
+      return journaledCancel(reservationId);
+    }
+    List<Shard> involved = null;
     try {
-      beginTransaction();
-      verifyReserveStatement.clearParameters();
+      Shard reserveShard = locateReservation(reservationId);
+      if (reserveShard == null) {
+        return Reply.of(Reply.FAILED);
+      }
+      Shard userShard = router.forUser(session().username);
+      involved = shardsOf(reserveShard, userShard);
+      beginTransaction(involved);
+      PreparedStatement verifyReserveStatement = reserveShard.statement(VERIFY_RESERVATION);
       verifyReserveStatement.setInt(1, reservationId);
       ResultSet result = verifyReserveStatement.executeQuery();
       result.next();
       String identity = result.getString("username");
       int paid = result.getInt("paid");
+      int fid1 = result.getInt("fid1");
+      int fid2 = result.getInt("fid2");
       result.close();
-      int sum = 0;
-      if (identity.equalsIgnoreCase(username)) {
-        if (paid == 1) {
-          updateBalance(reservationId);
+      if (identity != null && identity.equalsIgnoreCase(session().username)) {
+        int refund = paid == 1 ? getSum(fid1, fid2) : 0;
+        if (refund > 0) {
+          updateBalance(userShard, session().username, refund);
         }
-        cancelReserve(reservationId);
-        commitTransaction();
+        cancelReserve(reserveShard, reservationId);
+        commitAcrossShards(userShard, reserveShard, reservationId, JournalRecord.CANCEL, refund);
+        seats.canceled(fid1, fid2);
+        recordWrite();
       } else {
-        rollbackTransaction();
-        return "Failed to cancel reservation " + reservationId + "\n";
+        rollbackTransaction(involved);
+        return Reply.of(Reply.FAILED);
       }
     } catch (SQLException e) {
-      return "Failed to cancel reservation " + reservationId + "\n";
+      rollbackQuietly(involved);
+      return Reply.of(Reply.FAILED);
+    }
+    return Reply.of(Reply.OK);
+  }
+
+  private void cancelReserve(Shard shard, int reserveId) throws SQLException {
+    PreparedStatement cancelReserveStatement = shard.statement(CANCEL_RESERVE);
+    cancelReserveStatement.setInt(1, reserveId);
+    cancelReserveStatement.executeUpdate();
+  }
+
+  // refund the given amount to the user
+  private void updateBalance(Shard shard, String user, int sum) throws SQLException {
+    PreparedStatement updateBalanceStatement = shard.statement(UPDATE_BALANCE);
+    updateBalanceStatement.setString(1, user);
+    updateBalanceStatement.setInt(2, sum);
+    updateBalanceStatement.setString(3, user);
+    updateBalanceStatement.executeUpdate();
+  }
+
+  /* journal mode: book, pay and cancel are decided against the database plus the
+   * journal records not yet applied, logged, and acknowledged once on disk. The
+   * journal writer applies them to the database in the background. */
+
+  private Reply journaledBook(Shard shard, int fidOne, int fidTwo, int dayOfMonth) {
+    JournalRecord record;
+    ReentrantLock user = journal.userLock(session().username);
+    try {
+      user.lock();
+      try {
+        if (!journal.flightLocks().lock(fidOne, fidTwo)) {
+          return Reply.of(Reply.OVERLOADED);
+        }
+        try {
+          Reply refused = readUnapplied(shard, journal.pending(), reservedOn(shard), unapplied -> {
+            if (checkDate(shard, dayOfMonth, unapplied)) {
+              return Reply.of(Reply.SAME_DAY);
+            }
+            if (checkCapacity(shard, fidOne, unapplied) || (fidTwo != 0 && checkCapacity(shard, fidTwo, unapplied))) {
+              return Reply.of(Reply.FAILED);
+            }
+            return null;
+          });
+          if (refused != null) {
+            return refused;
+          }
+          record = journal.append(new JournalRecord(JournalRecord.BOOK, journal.nextReservationId(), session().username,
+                                                    fidOne, fidTwo, dayOfMonth, 0));
+        } finally {
+          journal.flightLocks().unlock(fidOne, fidTwo);
+        }
+      } finally {
+        user.unlock();
+      }
+      journal.awaitDurable(record);
+      seats.booked(fidOne, fidTwo);
+      recordWrite();
+    } catch (SQLException | IOException e) {
+      return Reply.of(Reply.FAILED);
     }
-    return "Canceled reservation " + reservationId + "\n";
+    return Reply.of(Reply.OK, record.reservationId);
   }
 
-  private void cancelReserve(int reserveId) {
+  private Reply journaledPay(int reservationId) {
+    int balance = 0;
+    int total = 0;
+    JournalRecord record;
     try {
-      cancelReserveStatement.clearParameters();
-      cancelReserveStatement.setInt(1, reserveId);
-      cancelReserveStatement.executeUpdate();
-    } catch (SQLException e) {}
+      ReentrantLock user = journal.userLock(session().username);
+      user.lock();
+      try {
+        List<JournalRecord> pending = journal.pending();
+        JournalRecord state = reservationState(reservationId, pending);
+        if (state == null || state.op != JournalRecord.BOOK || !state.username.equalsIgnoreCase(session().username)) {
+          return Reply.of(Reply.NOT_FOUND);
+        }
+        total = getSum(state.fid1, state.fid2);
+        balance = pendingBalance(pending);
+        if (balance < total) {
+          return Reply.of(Reply.INSUFFICIENT_FUNDS, balance, total);
+        }
+        record = journal.append(new JournalRecord(JournalRecord.PAY, reservationId, session().username,
+                                                  state.fid1, state.fid2, state.dayOfMonth, total));
+      } finally {
+        user.unlock();
+      }
+      journal.awaitDurable(record);
+      recordWrite();
+    } catch (SQLException | IOException e) {
+      return Reply.of(Reply.FAILED);
+    }
+    return Reply.of(Reply.OK, balance - total);
   }
 
-  private void updateBalance(int reserveId) {
+  private Reply journaledCancel(int reservationId) {
+    JournalRecord record;
     try {
-      int sum = 0;
-      sum = getSum(reserveId);
-      updateBalanceStatement.clearParameters();
-      updateBalanceStatement.setString(1, username);
-      updateBalanceStatement.setInt(2, sum);
-      updateBalanceStatement.setString(3, username);
-      updateBalanceStatement.executeUpdate();
-    } catch (SQLException e) {}
+      ReentrantLock user = journal.userLock(session().username);
+      user.lock();
+      try {
+        List<JournalRecord> pending = journal.pending();
+        JournalRecord state = reservationState(reservationId, pending);
+        if (state == null || !state.username.equalsIgnoreCase(session().username)) {
+          return Reply.of(Reply.FAILED);
+        }
+        int refund = state.op == JournalRecord.PAY ? getSum(state.fid1, state.fid2) : 0;
+        record = journal.append(new JournalRecord(JournalRecord.CANCEL, reservationId, session().username,
+                                                  state.fid1, state.fid2, state.dayOfMonth, refund));
+      } finally {
+        user.unlock();
+      }
+      journal.awaitDurable(record);
+      seats.canceled(record.fid1, record.fid2);
+      recordWrite();
+    } catch (SQLException | IOException e) {
+      return Reply.of(Reply.FAILED);
+    }
+    return Reply.of(Reply.OK);
+  }
+
+  // the reservation as it stands once the pending records are applied: a BOOK record
+  // if it is unpaid, a PAY record if it is paid, null if it does not exist or was canceled
+  private JournalRecord reservationState(final int reservationId, List<JournalRecord> pending) throws SQLException {
+    JournalRecord booked = pendingRecord(pending, JournalRecord.BOOK, reservationId);
+    final Shard shard = booked != null ? router.forDay(booked.dayOfMonth) : locateReservation(reservationId);
+    if (shard == null) {
+      return null;
+    }
+    return readUnapplied(shard, pending, reservedOn(shard), unapplied -> {
+      if (pendingRecord(unapplied, JournalRecord.CANCEL, reservationId) != null) {
+        return null;
+      }
+      JournalRecord state = null;
+      PreparedStatement getReservationStatement = shard.statement(GET_RESERVATION);
+      getReservationStatement.setInt(1, reservationId);
+      ResultSet result = getReservationStatement.executeQuery();
+      if (result.next()) {
+        String owner = result.getString("username");
+        if (owner != null && !owner.trim().isEmpty()) {
+          state = new JournalRecord(result.getInt("paid") == 1 ? JournalRecord.PAY : JournalRecord.BOOK, reservationId, owner,
+                                    result.getInt("fid1"), result.getInt("fid2"), result.getInt("flight_date"), 0);
+        }
+      }
+      result.close();
+      if (state == null) {
+        state = pendingRecord(unapplied, JournalRecord.BOOK, reservationId);
+      }
+      if (state != null && state.op == JournalRecord.BOOK) {
+        JournalRecord paid = pendingRecord(unapplied, JournalRecord.PAY, reservationId);
+        if (paid != null) {
+          state = paid;
+        }
+      }
+      return state;
+    });
+  }
+
+  // the logged in user's balance once the pending records are applied
+  private int pendingBalance(List<JournalRecord> pending) throws SQLException {
+    final Shard userShard = router.forUser(session().username);
+    return readUnapplied(userShard, pending, record -> router.forUser(record.username) == userShard,
+                         unapplied -> getBalance(userShard) + pendingBalanceChange(unapplied));
+  }
+
+  // records whose reservation row lives on the shard
+  private Predicate<JournalRecord> reservedOn(Shard shard) {
+    return record -> router.forDay(record.dayOfMonth) == shard;
+  }
+
+  /** Reads on one shard, given the pending records that shard has not applied yet. */
+  private interface UnappliedRead<T>
+  {
+    T read(List<JournalRecord> unapplied) throws SQLException;
+  }
+
+  // run reads on a primary shard in one transaction that first reads the shard's applied
+  // lsn. The applier moves applied_lsn first in each of its transactions, so the rows
+  // read hold exactly the records up to it, and the read is passed the pending records
+  // after it that are stored on the shard: a record is counted once, from the rows or
+  // from pending, even while a batch has reached some shards and not others
+  private <T> T readUnapplied(Shard shard, List<JournalRecord> pending, Predicate<JournalRecord> storedOn,
+                             UnappliedRead<T> read) throws SQLException {
+    try {
+      shard.beginTransaction();
+      ResultSet result = shard.statement(GET_APPLIED_LSN).executeQuery();
+      long appliedLsn = result.next() ? result.getLong("applied_lsn") : 0;
+      result.close();
+      T value = read.read(ReservationJournal.unapplied(pending, appliedLsn, storedOn));
+      shard.commitTransaction();
+      return value;
+    } catch (SQLException e) {
+      rollbackQuietly(shard);
+      throw e;
+    }
+  }
+
+  // the last pending record of the given kind for the reservation, or null
+  private static JournalRecord pendingRecord(List<JournalRecord> pending, byte op, int reservationId) {
+    JournalRecord found = null;
+    for (JournalRecord record : pending) {
+      if (record.op == op && record.reservationId == reservationId) {
+        found = record;
+      }
+    }
+    return found;
+  }
+
+  // how much the logged in user's balance will change once the pending records are applied
+  private int pendingBalanceChange(List<JournalRecord> pending) {
+    int change = 0;
+    for (JournalRecord record : pending) {
+      if (record.username.equalsIgnoreCase(session().username)) {
+        if (record.op == JournalRecord.PAY) {
+          change -= record.amount;
+        } else if (record.op == JournalRecord.CANCEL) {
+          change += record.amount;
+        }
+      }
+    }
+    return change;
+  }
+
+  // apply pending cancels and payments to listed reservations and add pending bookings
+  private static void overlayReservations(List<Reservation> reservations, List<JournalRecord> pending, String user) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    reservations.removeIf(reservation -> pendingRecord(pending, JournalRecord.CANCEL, reservation.reservationId) != null);
+    reservations.replaceAll(reservation -> pendingRecord(pending, JournalRecord.PAY, reservation.reservationId) == null ? reservation
+        : new Reservation(reservation.reservationId, true, reservation.fid1, reservation.fid2));
+    for (JournalRecord record : pending) {
+      if (record.op == JournalRecord.BOOK && record.username.equalsIgnoreCase(user)
+          && pendingRecord(pending, JournalRecord.CANCEL, record.reservationId) == null) {
+        boolean paid = pendingRecord(pending, JournalRecord.PAY, record.reservationId) != null;
+        reservations.add(new Reservation(record.reservationId, paid, record.fid1, record.fid2));
+      }
+    }
+  }
+
+  /* journal writer: applies records on the shards they belong to. Each shard stores the
+   * last lsn it has applied in the same transaction, so a replay skips what is there. */
+
+  private void loadAppliedLsn() throws SQLException {
+    shardAppliedLsn = new long[router.size()];
+    for (Shard shard : router.all()) {
+      ResultSet result = shard.statement(GET_APPLIED_LSN).executeQuery();
+      if (result.next()) {
+        shardAppliedLsn[shard.index()] = result.getLong("applied_lsn");
+      }
+      result.close();
+    }
+  }
+
+  private long maxAppliedLsn() {
+    long max = 0;
+    for (long lsn : shardAppliedLsn) {
+      max = Math.max(max, lsn);
+    }
+    return max;
+  }
+
+  private int readReservationId() throws SQLException {
+    ResultSet result = router.home().statement(READ_RESERVATION_ID).executeQuery();
+    result.next();
+    int nextId = result.getInt("next_id");
+    result.close();
+    return nextId;
+  }
+
+  private void applyJournal(List<JournalRecord> batch) throws SQLException {
+    long lastLsn = batch.get(batch.size() - 1).lsn();
+    for (Shard shard : router.all()) {
+      List<JournalRecord> mine = ReservationJournal.unapplied(batch, shardAppliedLsn[shard.index()],
+                                                              record -> touches(shard, record));
+      if (mine.isEmpty()) {
+        continue;
+      }
+      try {
+        shard.beginTransaction();
+        // applied_lsn first, the row decisions read first, so they wait for this commit
+        // instead of deadlocking with it
+        PreparedStatement setLsnStatement = shard.statement(SET_APPLIED_LSN);
+        setLsnStatement.setLong(1, lastLsn);
+        setLsnStatement.executeUpdate();
+        for (JournalRecord record : mine) {
+          applyRecord(shard, record);
+        }
+        shard.commitTransaction();
+      } catch (SQLException e) {
+        rollbackQuietly(shard);
+        throw e;
+      }
+      shardAppliedLsn[shard.index()] = lastLsn;
+    }
+  }
+
+  private boolean touches(Shard shard, JournalRecord record) {
+    return router.forDay(record.dayOfMonth) == shard || router.forUser(record.username) == shard
+        || (record.op == JournalRecord.BOOK && router.home() == shard);
+  }
+
+  private void applyRecord(Shard shard, JournalRecord record) throws SQLException {
+    boolean reserveShard = router.forDay(record.dayOfMonth) == shard;
+    boolean userShard = router.forUser(record.username) == shard;
+    if (record.op == JournalRecord.BOOK) {
+      if (reserveShard) {
+        insertReservation(shard, record.reservationId, record.username, record.fid1, record.fid2, record.dayOfMonth);
+      }
+      if (router.home() == shard) {
+        PreparedStatement advanceStatement = shard.statement(ADVANCE_RESERVATION_ID);
+        advanceStatement.setInt(1, record.reservationId + 1);
+        advanceStatement.setInt(2, record.reservationId + 1);
+        advanceStatement.executeUpdate();
+      }
+    } else if (record.op == JournalRecord.PAY) {
+      if (userShard) {
+        PreparedStatement deductStatement = shard.statement(DEDUCT_BALANCE);
+        deductStatement.setInt(1, record.amount);
+        deductStatement.setString(2, record.username);
+        deductStatement.executeUpdate();
+      }
+      if (reserveShard) {
+        PreparedStatement updateReserveStatement = shard.statement(UPDATE_RESERVE);
+        updateReserveStatement.setInt(1, 1);
+        updateReserveStatement.setInt(2, record.reservationId);
+        updateReserveStatement.executeUpdate();
+      }
+    } else if (record.op == JournalRecord.CANCEL) {
+      if (userShard && record.amount > 0) {
+        updateBalance(shard, record.username, record.amount);
+      }
+      if (reserveShard) {
+        cancelReserve(shard, record.reservationId);
+      }
+    }
+  }
+
+  /* shard transactions: begun in the order given. There is no two
+   * phase commit; pay and cancel, which change a balance on the user's shard and a
+   * reservation on its day's shard, go through commitAcrossShards to repair a failure
+   * between the two commits */
+
+  // commit a pay or cancel: the balance change on the user's shard first, then the
+  // reservation change. If the second commit fails and the reservation did not change,
+  // the balance change is undone by a compensating update, and if that fails too the
+  // mismatch is logged for repair. Throws if the reservation did not change.
+  private void commitAcrossShards(Shard userShard, Shard reserveShard, int reservationId, byte op,
+                                  int balanceChange) throws SQLException {
+    userShard.commitTransaction();
+    if (reserveShard == userShard) {
+      return;
+    }
+    SQLException failure;
+    try {
+      reserveShard.commitTransaction();
+      return;
+    } catch (SQLException e) {
+      failure = e;
+      rollbackQuietly(reserveShard);
+    }
+    String user = session().username;
+    try {
+      // the commit may have gone through with only its reply lost
+      if (reservationChanged(reserveShard, reservationId, op)) {
+        return;
+      }
+      if (balanceChange != 0) {
+        updateBalance(userShard, user, -balanceChange);
+      }
+    } catch (SQLException e) {
+      System.err.printf("%s of reservation %d failed after changing the balance of %s by %d; "
+                        + "the balance was not restored: %s%n", op == JournalRecord.PAY ? "payment" : "cancellation",
+                        reservationId, user, balanceChange, e.getMessage());
+    }
+    throw failure;
+  }
+
+  // whether a pay (paid) or cancel (row cleared) of the reservation is in the database
+  private boolean reservationChanged(Shard shard, int reservationId, byte op) throws SQLException {
+    PreparedStatement verifyReserveStatement = shard.statement(VERIFY_RESERVATION);
+    verifyReserveStatement.setInt(1, reservationId);
+    ResultSet result = verifyReserveStatement.executeQuery();
+    boolean changed;
+    if (!result.next()) {
+      changed = false;
+    } else if (op == JournalRecord.PAY) {
+      changed = result.getInt("paid") == 1;
+    } else {
+      String owner = result.getString("username");
+      changed = owner == null || owner.trim().isEmpty();
+    }
+    result.close();
+    return changed;
+  }
+
+  // the distinct shards an operation touches
+  private List<Shard> shardsOf(Shard first, Shard second) {
+    List<Shard> shards = new ArrayList<Shard>(2);
+    shards.add(first);
+    if (second != first) {
+      shards.add(second);
+    }
+    return shards;
+  }
+
+  private void beginTransaction(List<Shard> shards) throws SQLException {
+    for (Shard shard : shards) {
+      shard.beginTransaction();
+    }
+  }
+
+  private void rollbackTransaction(List<Shard> shards) throws SQLException {
+    for (Shard shard : shards) {
+      shard.rollbackTransaction();
+    }
+  }
+
+  private void rollbackQuietly(Shard shard) {
+    if (shard == null) {
+      return;
+    }
+    try {
+      if (!shard.connection().getAutoCommit()) {
+        shard.rollbackTransaction();
+      }
+    } catch (SQLException e) {
+      try {
+        shard.connection().setAutoCommit(true);
+      } catch (SQLException ignored) {}
+    }
+  }
+
+  private void rollbackQuietly(List<Shard> shards) {
+    if (shards != null) {
+      for (Shard shard : shards) {
+        rollbackQuietly(shard);
+      }
+    }
   }
 
   /* some utility functions below */
@@ -0,0 +1,176 @@
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Stands in for database replication when trying out read replicas locally:
+ * copies the primary's tables to the replica on an interval, then stamps
+ * ReplicaHeartbeat with the time the copy started. Each copy is one replica
+ * transaction, so snapshot readers see either the old copy or the new one.
+ *
+ * Flights is copied whole on the first pass. Later passes copy only the Flights
+ * rows whose row_version (see createTables.sql) changed since the last pass, so
+ * canceled, capacity and price on the replica are as fresh as the heartbeat
+ * says. UserInfo and Reserve are copied whole on every pass.
+ *
+ * Usage: java -cp "lib/*:." ReplicationStandIn [dbconn.properties] [interval ms]
+ * using flightservice.url as the primary and flightservice.replica.url as the replica.
+ */
+public class ReplicationStandIn
+{
+  private static final String[] COPIED_TABLES = {"UserInfo", "Reserve"};
+  private static final String STAMP = "UPDATE ReplicaHeartbeat SET replicated_at = ? WHERE id = 0";
+  private static final String HORIZON = "SELECT CAST(MIN_ACTIVE_ROWVERSION() AS BIGINT) AS horizon";
+  private static final String CHANGED_FLIGHTS = "SELECT * FROM Flights WHERE row_version >= CAST(CAST(? AS BIGINT) AS BINARY(8)) AND row_version < CAST(CAST(? AS BIGINT) AS BINARY(8))";
+
+  private final Connection primary;
+  private final Connection replica;
+
+  // first Flights row version not yet on the replica, -1 until Flights has been copied whole
+  private long flightsFrom = -1;
+
+  public ReplicationStandIn(Connection primary, Connection replica)
+  {
+    this.primary = primary;
+    this.replica = replica;
+  }
+
+  // copy one pass and stamp the heartbeat, all in one replica transaction
+  public void copy() throws SQLException {
+    long startedAt = System.currentTimeMillis();
+    replica.setAutoCommit(false);
+    try {
+      // read before the rows, so rows written by transactions still running are left for the next pass
+      long flightsTo = horizon();
+      if (flightsFrom < 0) {
+        copyTable("Flights");
+      } else {
+        copyChangedFlights(flightsFrom, flightsTo);
+      }
+      for (String table : COPIED_TABLES) {
+        copyTable(table);
+      }
+      PreparedStatement stamp = replica.prepareStatement(STAMP);
+      stamp.setLong(1, startedAt);
+      stamp.executeUpdate();
+      stamp.close();
+      replica.commit();
+      flightsFrom = flightsTo;
+    } catch (SQLException e) {
+      replica.rollback();
+      throw e;
+    } finally {
+      replica.setAutoCommit(true);
+    }
+  }
+
+  private long horizon() throws SQLException {
+    Statement read = primary.createStatement();
+    ResultSet result = read.executeQuery(HORIZON);
+    result.next();
+    long horizon = result.getLong("horizon");
+    result.close();
+    read.close();
+    return horizon;
+  }
+
+  private void copyTable(String table) throws SQLException {
+    Statement clear = replica.createStatement();
+    clear.executeUpdate("DELETE FROM " + table);
+    clear.close();
+    Statement read = primary.createStatement();
+    ResultSet rows = read.executeQuery("SELECT * FROM " + table);
+    insertRows(table, rows, null);
+    rows.close();
+    read.close();
+  }
+
+  // replace the Flights rows with versions in [from, to)
+  private void copyChangedFlights(long from, long to) throws SQLException {
+    PreparedStatement read = primary.prepareStatement(CHANGED_FLIGHTS);
+    read.setLong(1, from);
+    read.setLong(2, to);
+    ResultSet rows = read.executeQuery();
+    insertRows("Flights", rows, "fid");
+    rows.close();
+    read.close();
+  }
+
+  // insert rows into the replica, first deleting the row with the same key if key is given
+  private void insertRows(String table, ResultSet rows, String key) throws SQLException {
+    // rowversion columns (reported as timestamp) are set by the database and cannot be inserted
+    ResultSetMetaData meta = rows.getMetaData();
+    List<Integer> copied = new ArrayList<Integer>();
+    StringBuilder names = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    for (int i = 1; i <= meta.getColumnCount(); i++) {
+      String type = meta.getColumnTypeName(i);
+      if (type.equalsIgnoreCase("timestamp") || type.equalsIgnoreCase("rowversion")) {
+        continue;
+      }
+      names.append(copied.isEmpty() ? "" : ", ").append(meta.getColumnName(i));
+      values.append(copied.isEmpty() ? "?" : ", ?");
+      copied.add(i);
+    }
+    String insert = "INSERT INTO " + table + " (" + names + ") VALUES (" + values + ")";
+
+    PreparedStatement delete = key == null ? null : replica.prepareStatement("DELETE FROM " + table + " WHERE " + key + " = ?");
+    int keyColumn = key == null ? 0 : rows.findColumn(key);
+    PreparedStatement write = replica.prepareStatement(insert);
+    int batched = 0;
+    while (rows.next()) {
+      if (delete != null) {
+        delete.setObject(1, rows.getObject(keyColumn));
+        delete.addBatch();
+      }
+      for (int i = 0; i < copied.size(); i++) {
+        write.setObject(i + 1, rows.getObject(copied.get(i)));
+      }
+      write.addBatch();
+      if (++batched % 1000 == 0) {
+        flush(delete, write);
+      }
+    }
+    flush(delete, write);
+    if (delete != null) {
+      delete.close();
+    }
+    write.close();
+  }
+
+  // deletes go first, so a replaced row is gone before its new version is inserted
+  private static void flush(PreparedStatement delete, PreparedStatement write) throws SQLException {
+    if (delete != null) {
+      delete.executeBatch();
+    }
+    write.executeBatch();
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Properties configProps = new Properties();
+    configProps.load(new FileInputStream(args.length > 0 ? args[0] : FlightService.DBCONFIG_FILENAME));
+    long interval = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+    Class.forName(configProps.getProperty("flightservice.jdbc_driver"));
+    String user = configProps.getProperty("flightservice.sqlazure_username");
+    String password = configProps.getProperty("flightservice.sqlazure_password");
+    Connection primary = DriverManager.getConnection(configProps.getProperty("flightservice.url"), user, password);
+    Connection replica = DriverManager.getConnection(configProps.getProperty("flightservice.replica.url"),
+            configProps.getProperty("flightservice.replica.sqlazure_username", user),
+            configProps.getProperty("flightservice.replica.sqlazure_password", password));
+
+    ReplicationStandIn standIn = new ReplicationStandIn(primary, replica);
+    while (true) {
+      standIn.copy();
+      Thread.sleep(interval);
+    }
+  }
+}
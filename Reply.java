@@ -0,0 +1,61 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one FlightService command as data: a status code, the ints
+ * the command reports, and the itineraries or reservations it returns. The
+ * binary protocol sends it as is; the text commands in {@link Query} render it.
+ */
+public class Reply
+{
+  public static final byte OK = 0;
+  public static final byte FAILED = 1;
+  public static final byte NOT_LOGGED_IN = 2;
+  public static final byte ALREADY_LOGGED_IN = 3;
+  public static final byte NO_SUCH_ITINERARY = 4;
+  public static final byte SAME_DAY = 5;
+  public static final byte NOT_FOUND = 6;
+  public static final byte INSUFFICIENT_FUNDS = 7;
+  public static final byte BAD_REQUEST = 8;
+  // turned away by admission control, the client may retry later
+  public static final byte OVERLOADED = 9;
+
+  private static final int[] NO_VALUES = new int[0];
+
+  public final byte status;
+
+  // book: reservation id; pay: remaining balance, or balance and cost if funds are short
+  public final int[] values;
+
+  public final List<Itinerary> itineraries;
+  public final List<Reservation> reservations;
+
+  private Reply(byte status, int[] values, List<Itinerary> itineraries, List<Reservation> reservations)
+  {
+    this.status = status;
+    this.values = values;
+    this.itineraries = itineraries;
+    this.reservations = reservations;
+  }
+
+  public static Reply of(byte status, int... values) {
+    return new Reply(status, values.length == 0 ? NO_VALUES : values,
+                     Collections.<Itinerary>emptyList(), Collections.<Reservation>emptyList());
+  }
+
+  public static Reply ofItineraries(List<Itinerary> itineraries) {
+    return new Reply(OK, NO_VALUES, itineraries, Collections.<Reservation>emptyList());
+  }
+
+  public static Reply ofReservations(List<Reservation> reservations) {
+    return new Reply(OK, NO_VALUES, Collections.<Itinerary>emptyList(), reservations);
+  }
+
+  public boolean ok() {
+    return status == OK;
+  }
+
+  public int value(int index) {
+    return values[index];
+  }
+}
@@ -0,0 +1,19 @@
+/**
+ * One of a user's reservations as listed by the reservations command.
+ * {@code fid2} is 0 for a direct flight, as in the Reserve table.
+ */
+public class Reservation
+{
+  public final int reservationId;
+  public final boolean paid;
+  public final int fid1;
+  public final int fid2;
+
+  public Reservation(int reservationId, boolean paid, int fid1, int fid2)
+  {
+    this.reservationId = reservationId;
+    this.paid = paid;
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+  }
+}
@@ -0,0 +1,330 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal for bookings, payments and cancellations.
+ *
+ * A session appends a record and waits only until it is on disk; one flusher
+ * thread writes and fsyncs whatever every session has appended since its last
+ * write (group commit). A second thread applies durable records to the database
+ * in batches through the {@link Applier}, which records the last applied LSN in
+ * the same database transaction, so replaying the journal after a restart
+ * applies each record exactly once.
+ *
+ * Until a record is applied to every database it stays in {@link #pending()}.
+ * A batch can reach some databases and not others, so a decision that reads a
+ * database overlays only the pending records after that database's applied
+ * LSN, read in the same transaction as its rows (see {@link #unapplied}); it
+ * sees each record exactly once, in pending or in the database.
+ *
+ * Decisions that must see each other's records are serialized only where they
+ * conflict: a user's same-day bookings, reservations and balance change only
+ * through that user's decisions, made holding {@link #userLock}, and seats on a
+ * flight are only taken by bookings holding its {@link #flightLocks} lock.
+ * Cancellations only free seats, so they need no flight lock. No lock is held
+ * by the applier, and none is global.
+ *
+ * Each entry on disk is [int length][record bytes][int crc32]; a torn entry at
+ * the tail is dropped on recovery.
+ */
+public class ReservationJournal
+{
+  /** Writes journal records to the database. */
+  public interface Applier
+  {
+    // apply the records not yet applied, in order, and remember the last lsn applied
+    void apply(List<JournalRecord> batch) throws SQLException;
+
+    // highest lsn already in the database
+    long appliedLsn() throws SQLException;
+  }
+
+  private static final int MAX_BATCH = 256;
+  private static final long RETRY_MILLIS = 1000;
+  private static final int USER_LOCK_STRIPES = 256;
+  private static final long FLIGHT_LOCK_TIMEOUT_MILLIS = 10000;
+
+  private final FileChannel channel;
+  private final Applier applier;
+  private final ReentrantLock[] userLocks = new ReentrantLock[USER_LOCK_STRIPES];
+  private final FlightLocks flightLocks = new FlightLocks(FLIGHT_LOCK_TIMEOUT_MILLIS, Integer.MAX_VALUE);
+
+  // guarded by this
+  private final ArrayList<JournalRecord> pending = new ArrayList<JournalRecord>();
+  private final ArrayList<JournalRecord> unwritten = new ArrayList<JournalRecord>();
+  private long nextLsn;
+  private long durableLsn;
+  private long appliedLsn;
+  private int nextReservationId;
+  private IOException failure;
+  private boolean closed;
+
+  private final Thread flusher;
+  private final Thread writer;
+
+  public ReservationJournal(File file, Applier applier) throws IOException, SQLException
+  {
+    this.applier = applier;
+    for (int i = 0; i < userLocks.length; i++) {
+      userLocks[i] = new ReentrantLock();
+    }
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    appliedLsn = applier.appliedLsn();
+    List<JournalRecord> recovered = recover();
+    if (!recovered.isEmpty()) {
+      appliedLsn = Math.max(appliedLsn, recovered.get(recovered.size() - 1).lsn);
+      applier.apply(recovered);
+    }
+    channel.truncate(0);
+    channel.force(true);
+    nextLsn = appliedLsn + 1;
+    durableLsn = appliedLsn;
+
+    flusher = new Thread(this::flushLoop, "journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+    writer = new Thread(this::applyLoop, "journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  // read every complete entry, stopping at the first torn or corrupt one
+  private List<JournalRecord> recover() throws IOException {
+    List<JournalRecord> records = new ArrayList<JournalRecord>();
+    ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+    channel.read(content, 0);
+    content.flip();
+    CRC32 crc = new CRC32();
+    while (content.remaining() >= 4) {
+      int length = content.getInt();
+      if (length <= 0 || content.remaining() < length + 4) {
+        break;
+      }
+      byte[] bytes = new byte[length];
+      content.get(bytes);
+      crc.reset();
+      crc.update(bytes);
+      if ((int) crc.getValue() != content.getInt()) {
+        break;
+      }
+      try {
+        records.add(JournalRecord.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+      } catch (EOFException e) {
+        break;
+      }
+    }
+    return records;
+  }
+
+  /** Hold this while deciding on the user's reservations or balance and appending the decision. */
+  public ReentrantLock userLock(String username) {
+    return userLocks[Math.floorMod(username.toLowerCase(Locale.ROOT).hashCode(), userLocks.length)];
+  }
+
+  /** A booking holds its flights, after its user lock, while counting seats and appending. */
+  public FlightLocks flightLocks() {
+    return flightLocks;
+  }
+
+  // records appended but not yet applied, in lsn order
+  public synchronized List<JournalRecord> pending() {
+    return new ArrayList<JournalRecord>(pending);
+  }
+
+  // next id to hand out, taken from the database counter once it is up to date
+  public synchronized void setNextReservationId(int nextId) {
+    nextReservationId = nextId;
+  }
+
+  public synchronized int nextReservationId() {
+    return nextReservationId++;
+  }
+
+  // queue the record for the next group commit; call awaitDurable before acknowledging it
+  public synchronized JournalRecord append(JournalRecord record) throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (closed) {
+      throw new IOException("journal closed");
+    }
+    record.lsn = nextLsn++;
+    pending.add(record);
+    unwritten.add(record);
+    notifyAll();
+    return record;
+  }
+
+  public synchronized void awaitDurable(JournalRecord record) throws IOException {
+    while (durableLsn < record.lsn && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for journal", e);
+      }
+    }
+    if (durableLsn < record.lsn) {
+      throw failure;
+    }
+  }
+
+  private void flushLoop() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    while (true) {
+      List<JournalRecord> batch;
+      synchronized (this) {
+        while (unwritten.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (unwritten.isEmpty()) {
+          return;
+        }
+        batch = new ArrayList<JournalRecord>(unwritten);
+        unwritten.clear();
+      }
+      try {
+        bytes.reset();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (JournalRecord record : batch) {
+          entry.reset();
+          record.write(new DataOutputStream(entry));
+          byte[] body = entry.toByteArray();
+          crc.reset();
+          crc.update(body);
+          out.writeInt(body.length);
+          out.write(body);
+          out.writeInt((int) crc.getValue());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer, channel.size());
+        }
+        channel.force(false);
+        synchronized (this) {
+          durableLsn = batch.get(batch.size() - 1).lsn;
+          notifyAll();
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          failure = e;
+          notifyAll();
+        }
+        return;
+      }
+    }
+  }
+
+  private void applyLoop() {
+    while (true) {
+      List<JournalRecord> batch = new ArrayList<JournalRecord>();
+      synchronized (this) {
+        while (!closed && (pending.isEmpty() || pending.get(0).lsn > durableLsn)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        for (JournalRecord record : pending) {
+          if (record.lsn > durableLsn || batch.size() == MAX_BATCH) {
+            break;
+          }
+          batch.add(record);
+        }
+        if (batch.isEmpty()) {
+          return;
+        }
+      }
+      try {
+        applier.apply(batch);
+      } catch (SQLException e) {
+        // a database is unavailable; keep the records and try again, the ones that
+        // already reached some databases are skipped there by their applied lsn
+        try {
+          Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        continue;
+      }
+      retire(batch);
+    }
+  }
+
+  // drop a batch every database has applied from pending
+  private synchronized void retire(List<JournalRecord> batch) {
+    pending.subList(0, batch.size()).clear();
+    appliedLsn = batch.get(batch.size() - 1).lsn;
+    if (pending.isEmpty()) {
+      // everything on disk is in the database, start the file over
+      try {
+        channel.truncate(0);
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * The records of a replayed or new batch that one database still needs: those
+   * it touches with an lsn above the last one it applied. Every database keeps
+   * its own applied lsn, so a batch that only reached some of them before a
+   * crash is applied exactly once to each on replay.
+   */
+  public static List<JournalRecord> unapplied(List<JournalRecord> batch, long appliedLsn, Predicate<JournalRecord> touches) {
+    List<JournalRecord> needed = new ArrayList<JournalRecord>();
+    for (JournalRecord record : batch) {
+      if (record.lsn > appliedLsn && touches.test(record)) {
+        needed.add(record);
+      }
+    }
+    return needed;
+  }
+
+  // wait for everything appended so far to reach the database, for tests and shutdown
+  public synchronized void drain() throws IOException {
+    while (!pending.isEmpty() && failure == null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for journal", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  public void close() throws IOException {
+    drain();
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    channel.close();
+  }
+}
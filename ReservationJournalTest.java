@@ -0,0 +1,206 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recovery and replay of the reservation journal, against stub appliers.
+ *
+ * Run with: java -cp "lib/*:." org.junit.runner.JUnitCore ReservationJournalTest
+ */
+public class ReservationJournalTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // holds every batch until released, so appended records stay in the file
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final List<ReservationJournal> opened = new ArrayList<ReservationJournal>();
+
+  @After
+  public void closeJournals() throws Exception {
+    release.countDown();
+    for (ReservationJournal journal : opened) {
+      journal.close();
+    }
+  }
+
+  // applies records to one or more stub databases, each keeping its own applied lsn
+  private static class StubApplier implements ReservationJournal.Applier
+  {
+    final long[] appliedLsn;
+    final List<List<Long>> appliedTo = new ArrayList<List<Long>>();
+    final CountDownLatch gate;
+    // database whose first commit fails, after the ones before it have committed
+    int down = -1;
+    final CountDownLatch failed = new CountDownLatch(1);
+
+    StubApplier(CountDownLatch gate, long... appliedLsn)
+    {
+      this.gate = gate;
+      this.appliedLsn = appliedLsn;
+      for (int i = 0; i < appliedLsn.length; i++) {
+        appliedTo.add(new ArrayList<Long>());
+      }
+    }
+
+    public void apply(List<JournalRecord> batch) throws SQLException {
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new SQLException(e);
+      }
+      for (int db = 0; db < appliedLsn.length; db++) {
+        List<JournalRecord> mine = ReservationJournal.unapplied(batch, appliedLsn[db], storedOn(db));
+        if (mine.isEmpty()) {
+          continue;
+        }
+        synchronized (this) {
+          if (db == down) {
+            down = -1;
+            failed.countDown();
+            throw new SQLException("database " + db + " is down");
+          }
+          for (JournalRecord record : mine) {
+            appliedTo.get(db).add(record.lsn());
+          }
+          appliedLsn[db] = batch.get(batch.size() - 1).lsn();
+        }
+      }
+    }
+
+    // odd days live on database 1, even days on database 0
+    static Predicate<JournalRecord> storedOn(int db) {
+      return record -> record.dayOfMonth % 2 == db;
+    }
+
+    public synchronized long appliedLsn(int db) {
+      return appliedLsn[db];
+    }
+
+    public synchronized List<Long> appliedTo(int db) {
+      return new ArrayList<Long>(appliedTo.get(db));
+    }
+
+    public long appliedLsn() {
+      long max = 0;
+      for (long lsn : appliedLsn) {
+        max = Math.max(max, lsn);
+      }
+      return max;
+    }
+  }
+
+  private ReservationJournal open(File file, StubApplier applier) throws Exception {
+    ReservationJournal journal = new ReservationJournal(file, applier);
+    opened.add(journal);
+    return journal;
+  }
+
+  private static JournalRecord book(int reservationId, int day) {
+    return new JournalRecord(JournalRecord.BOOK, reservationId, "user" + reservationId, 100 + reservationId, 0, day, 0);
+  }
+
+  // append records to a journal whose applier never finishes, and return a copy of the
+  // file as a crash would leave it
+  private File crashedJournal(int... days) throws Exception {
+    File live = folder.newFile();
+    ReservationJournal journal = open(live, new StubApplier(release, 0));
+    JournalRecord last = null;
+    for (int i = 0; i < days.length; i++) {
+      last = journal.append(book(i + 1, days[i]));
+    }
+    journal.awaitDurable(last);
+    File copy = folder.newFile();
+    Files.copy(live.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return copy;
+  }
+
+  @Test
+  public void recoveryDropsTornTail() throws Exception {
+    File file = crashedJournal(1, 2, 3);
+    // half of a fourth entry: a length that promises more bytes than follow
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5});
+    out.close();
+
+    StubApplier applier = new StubApplier(new CountDownLatch(0), 0, 0);
+    ReservationJournal journal = open(file, applier);
+
+    assertEquals(Arrays.asList(1L, 3L), applier.appliedTo.get(1));
+    assertEquals(Arrays.asList(2L), applier.appliedTo.get(0));
+    assertEquals(0, file.length());
+    assertEquals(4, journal.append(book(4, 4)).lsn());
+  }
+
+  @Test
+  public void replaySkipsWhatEachDatabaseApplied() throws Exception {
+    File file = crashedJournal(2, 1, 2, 1, 2);
+    // database 0 (even days) got through lsn 3 before the crash, database 1 only through lsn 1
+    StubApplier applier = new StubApplier(new CountDownLatch(0), 3, 1);
+    ReservationJournal journal = open(file, applier);
+
+    assertEquals(Arrays.asList(5L), applier.appliedTo.get(0));
+    assertEquals(Arrays.asList(2L, 4L), applier.appliedTo.get(1));
+    assertEquals(6, journal.append(book(6, 2)).lsn());
+  }
+
+  @Test
+  public void batchFailingPartwayIsCountedOncePerDatabase() throws Exception {
+    StubApplier applier = new StubApplier(new CountDownLatch(0), 0, 0);
+    applier.down = 1;
+    ReservationJournal journal = open(folder.newFile(), applier);
+    // appending under the journal's monitor keeps the flusher out, so all three
+    // records become durable, and are applied, as one batch
+    synchronized (journal) {
+      journal.append(book(1, 2));
+      journal.append(book(2, 1));
+      journal.append(book(3, 2));
+    }
+    applier.failed.await();
+
+    // database 0 committed the batch, database 1 did not, and it all stays pending
+    List<JournalRecord> pending = journal.pending();
+    assertEquals(3, pending.size());
+    assertEquals(Arrays.asList(1L, 3L), applier.appliedTo(0));
+    assertEquals(Arrays.asList(), applier.appliedTo(1));
+    // a decision reading database 0 takes nothing more from pending, one reading database 1 takes its record
+    assertTrue(ReservationJournal.unapplied(pending, applier.appliedLsn(0), StubApplier.storedOn(0)).isEmpty());
+    List<JournalRecord> onOne = ReservationJournal.unapplied(pending, applier.appliedLsn(1), StubApplier.storedOn(1));
+    assertEquals(1, onOne.size());
+    assertEquals(2, onOne.get(0).lsn());
+
+    // the retry finishes database 1 without applying anything to database 0 again
+    journal.drain();
+    assertEquals(Arrays.asList(1L, 3L), applier.appliedTo(0));
+    assertEquals(Arrays.asList(2L), applier.appliedTo(1));
+    assertTrue(journal.pending().isEmpty());
+  }
+
+  @Test
+  public void unappliedKeepsOnlyNewerRecordsTheDatabaseHolds() {
+    List<JournalRecord> batch = new ArrayList<JournalRecord>();
+    for (int i = 1; i <= 4; i++) {
+      JournalRecord record = book(i, i);
+      record.lsn = i;
+      batch.add(record);
+    }
+    List<JournalRecord> needed = ReservationJournal.unapplied(batch, 2, record -> record.dayOfMonth % 2 == 0);
+    assertEquals(1, needed.size());
+    assertEquals(4, needed.get(0).lsn());
+  }
+}
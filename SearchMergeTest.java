@@ -0,0 +1,135 @@
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The merge of direct and one-stop search results, checked against the order
+ * the search had when it sorted both query results together in SQL.
+ *
+ * Run with: java -cp "lib/*:." org.junit.runner.JUnitCore SearchMergeTest
+ */
+public class SearchMergeTest
+{
+  // ORDER BY total_time ASC, flight_1 ASC, flight_2 ASC, as the old search sorted its results
+  private static final Comparator<Itinerary> BASELINE_ORDER = Comparator.comparingInt((Itinerary i) -> i.totalTime)
+      .thenComparingInt(i -> i.fid1).thenComparingInt(i -> i.fid2);
+
+  // one-stop itineraries handed out in order, counting how many were read
+  private static class ListSource implements Query.ItinerarySource
+  {
+    final List<Itinerary> itineraries;
+    int read = 0;
+
+    ListSource(List<Itinerary> itineraries)
+    {
+      this.itineraries = itineraries;
+    }
+
+    public Itinerary next() {
+      return read < itineraries.size() ? itineraries.get(read++) : null;
+    }
+  }
+
+  private static Itinerary direct(int fid, int time) {
+    return new Itinerary(fid, 0, time);
+  }
+
+  private static Itinerary oneStop(int fid1, int fid2, int time) {
+    return new Itinerary(fid1, fid2, time);
+  }
+
+  // the old search: the direct TOP k, the one-stop TOP (k - direct found), sorted together
+  private static List<Itinerary> baseline(List<Itinerary> direct, List<Itinerary> oneStop, int k) {
+    List<Itinerary> all = new ArrayList<Itinerary>(direct.subList(0, Math.min(k, direct.size())));
+    int quota = k - all.size();
+    all.addAll(oneStop.subList(0, Math.min(quota, oneStop.size())));
+    all.sort(BASELINE_ORDER);
+    return all;
+  }
+
+  private static List<Itinerary> merge(List<Itinerary> direct, List<Itinerary> oneStop, int k) throws SQLException {
+    List<Itinerary> found = direct.subList(0, Math.min(k, direct.size()));
+    return Query.mergeItineraries(found, new ListSource(oneStop), k - found.size());
+  }
+
+  private static void assertSameItineraries(List<Itinerary> expected, List<Itinerary> actual) {
+    assertEquals(render(expected), render(actual));
+  }
+
+  private static List<String> render(List<Itinerary> itineraries) {
+    List<String> rendered = new ArrayList<String>();
+    for (Itinerary itinerary : itineraries) {
+      rendered.add(itinerary.fid1 + "/" + itinerary.fid2 + "/" + itinerary.totalTime);
+    }
+    return rendered;
+  }
+
+  @Test
+  public void totalTimeTiesBreakOnFidsAsTheBaselineDid() throws Exception {
+    List<Itinerary> direct = Arrays.asList(direct(2, 100), direct(5, 100), direct(9, 120));
+    List<Itinerary> oneStop = Arrays.asList(oneStop(2, 7, 100), oneStop(3, 4, 100), oneStop(1, 8, 120));
+    List<Itinerary> merged = merge(direct, oneStop, 6);
+
+    assertSameItineraries(Arrays.asList(direct(2, 100), oneStop(2, 7, 100), oneStop(3, 4, 100), direct(5, 100),
+                                        oneStop(1, 8, 120), direct(9, 120)), merged);
+    assertSameItineraries(baseline(direct, oneStop, 6), merged);
+  }
+
+  @Test
+  public void zeroQuotaReadsNoOneStopItinerary() throws Exception {
+    List<Itinerary> direct = Arrays.asList(direct(1, 90), direct(2, 150));
+    ListSource oneStop = new ListSource(Arrays.asList(oneStop(3, 4, 60)));
+    List<Itinerary> merged = Query.mergeItineraries(direct, oneStop, 0);
+
+    assertSameItineraries(direct, merged);
+    assertEquals(0, oneStop.read);
+  }
+
+  @Test
+  public void directResultsFillingEverySlotLeaveOutFasterOneStops() throws Exception {
+    List<Itinerary> direct = Arrays.asList(direct(1, 200), direct(2, 210), direct(3, 220));
+    List<Itinerary> oneStop = Arrays.asList(oneStop(4, 5, 100), oneStop(6, 7, 110));
+    List<Itinerary> merged = merge(direct, oneStop, 3);
+
+    assertSameItineraries(direct, merged);
+    assertSameItineraries(baseline(direct, oneStop, 3), merged);
+  }
+
+  @Test
+  public void quotaStopsReadingTheOneStopSource() throws Exception {
+    List<Itinerary> direct = Arrays.asList(direct(1, 100));
+    ListSource oneStop = new ListSource(Arrays.asList(oneStop(2, 3, 50), oneStop(4, 5, 150), oneStop(6, 7, 160)));
+    List<Itinerary> merged = Query.mergeItineraries(direct, oneStop, 2);
+
+    assertSameItineraries(Arrays.asList(oneStop(2, 3, 50), direct(1, 100), oneStop(4, 5, 150)), merged);
+    assertEquals(2, oneStop.read);
+  }
+
+  @Test
+  public void matchesBaselineOnRandomSearches() throws Exception {
+    Random random = new Random(42);
+    for (int round = 0; round < 1000; round++) {
+      List<Itinerary> direct = new ArrayList<Itinerary>();
+      List<Itinerary> oneStop = new ArrayList<Itinerary>();
+      int fid = 1;
+      for (int i = random.nextInt(6); i > 0; i--) {
+        direct.add(direct(fid++, 60 + random.nextInt(5) * 10));
+      }
+      for (int i = random.nextInt(6); i > 0; i--) {
+        // small fid ranges make ties on total time and first fid common
+        oneStop.add(oneStop(1 + random.nextInt(fid), fid++, 60 + random.nextInt(5) * 10));
+      }
+      direct.sort(BASELINE_ORDER);
+      oneStop.sort(BASELINE_ORDER);
+      int k = random.nextInt(8);
+      assertSameItineraries(baseline(direct, oneStop, k), merge(direct, oneStop, k));
+    }
+  }
+}
@@ -0,0 +1,109 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Seats taken on each flight, kept in memory so search can leave out (or mark)
+ * sold-out itineraries without asking the database.
+ *
+ * The counts are loaded from Reserve, moved by every booking and cancellation
+ * this JVM makes, and set to the database's count whenever a booking reads it.
+ * They are a hint: bookings made by other processes only show up at the next
+ * recount, and the capacity check in book stays the authority.
+ *
+ * Flights found full are also remembered by day, so a search that hides
+ * sold-out itineraries can ask for about as many extra rows as it will hide.
+ */
+public class SeatTable
+{
+  private static final String COUNT_RESERVED = "SELECT fid, count(*) AS reserved FROM (SELECT fid1 AS fid FROM Reserve WHERE fid1 <> 0 UNION ALL SELECT fid2 AS fid FROM Reserve WHERE fid2 <> 0) AS legs GROUP BY fid";
+
+  private volatile ConcurrentHashMap<Integer, AtomicInteger> reserved = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+  // fids last seen full, and the day each flies
+  private final ConcurrentHashMap<Integer, Integer> fullFlights = new ConcurrentHashMap<Integer, Integer>();
+  private final ConcurrentHashMap<Integer, Set<Integer>> fullByDay = new ConcurrentHashMap<Integer, Set<Integer>>();
+
+  // count the reservations on every shard and replace the table with the result
+  public void load(List<Shard> shards) throws SQLException {
+    ConcurrentHashMap<Integer, AtomicInteger> counted = new ConcurrentHashMap<Integer, AtomicInteger>();
+    for (Shard shard : shards) {
+      ResultSet result = shard.statement(COUNT_RESERVED).executeQuery();
+      while (result.next()) {
+        counted.computeIfAbsent(result.getInt("fid"), fid -> new AtomicInteger()).addAndGet(result.getInt("reserved"));
+      }
+      result.close();
+    }
+    reserved = counted;
+    // counts moved, searches find the full flights again
+    forgetFullFlights();
+  }
+
+  public void clear() {
+    reserved = new ConcurrentHashMap<Integer, AtomicInteger>();
+    forgetFullFlights();
+  }
+
+  public int reserved(int fid) {
+    AtomicInteger count = reserved.get(fid);
+    return count == null ? 0 : count.get();
+  }
+
+  // true if the flight has a seat left as far as this table knows; fid 0, no second leg, always does
+  public boolean hasSeats(int fid, int capacity) {
+    return fid == 0 || reserved(fid) < capacity;
+  }
+
+  // note a flight found with no seats left
+  public void full(int fid, int dayOfMonth) {
+    if (fullFlights.put(fid, dayOfMonth) == null) {
+      fullByDay.computeIfAbsent(dayOfMonth, day -> ConcurrentHashMap.newKeySet()).add(fid);
+    }
+  }
+
+  // how many flights on the day were last seen full
+  public int fullOn(int dayOfMonth) {
+    Set<Integer> full = fullByDay.get(dayOfMonth);
+    return full == null ? 0 : full.size();
+  }
+
+  private void notFull(int fid) {
+    Integer day = fullFlights.remove(fid);
+    Set<Integer> full = day == null ? null : fullByDay.get(day);
+    if (full != null) {
+      full.remove(fid);
+    }
+  }
+
+  private void forgetFullFlights() {
+    fullFlights.clear();
+    fullByDay.clear();
+  }
+
+  public void booked(int fid1, int fid2) {
+    adjust(fid1, 1);
+    adjust(fid2, 1);
+  }
+
+  public void canceled(int fid1, int fid2) {
+    adjust(fid1, -1);
+    adjust(fid2, -1);
+    // a seat came free; if the flight is still full the next search notes it again
+    notFull(fid1);
+    notFull(fid2);
+  }
+
+  // the database's count, read by a booking
+  public void observed(int fid, int count) {
+    reserved.computeIfAbsent(fid, key -> new AtomicInteger()).set(count);
+  }
+
+  private void adjust(int fid, int delta) {
+    if (fid != 0) {
+      reserved.computeIfAbsent(fid, key -> new AtomicInteger()).addAndGet(delta);
+    }
+  }
+}
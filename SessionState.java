@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * What a client session carries between commands: the logged in user, the
+ * itineraries of its last search and when it last wrote a reservation.
+ *
+ * Encoded as
+ *   [byte version][short username length, -1 if logged out][username utf-8]
+ *   [long last write millis][int count][count x (int fid1, int fid2, int total time)]
+ * Decoding reads the header only; the itineraries are decoded the first time
+ * {@link #itineraries()} is called, and re-encoded from the original bytes if
+ * they were never touched.
+ */
+public class SessionState
+{
+  private static final byte VERSION = 1;
+
+  public String username;
+  public long lastWriteMillis;
+
+  private ArrayList<Itinerary> itineraries;
+  private ByteBuffer encodedItineraries;
+
+  // null until the first search
+  public ArrayList<Itinerary> itineraries() {
+    if (itineraries == null && encodedItineraries != null) {
+      ByteBuffer in = encodedItineraries.duplicate();
+      int count = in.getInt();
+      if (count >= 0) {
+        itineraries = new ArrayList<Itinerary>(count);
+        for (int i = 0; i < count; i++) {
+          itineraries.add(new Itinerary(in.getInt(), in.getInt(), in.getInt()));
+        }
+      }
+      encodedItineraries = null;
+    }
+    return itineraries;
+  }
+
+  public void setItineraries(ArrayList<Itinerary> itineraries) {
+    this.itineraries = itineraries;
+    this.encodedItineraries = null;
+  }
+
+  public byte[] encode() {
+    byte[] user = username == null ? null : username.getBytes(StandardCharsets.UTF_8);
+    int itinerarySize = encodedItineraries != null ? encodedItineraries.remaining()
+        : 4 + (itineraries == null ? 0 : itineraries.size() * 12);
+    ByteBuffer out = ByteBuffer.allocate(1 + 2 + (user == null ? 0 : user.length) + 8 + itinerarySize);
+    out.put(VERSION);
+    if (user == null) {
+      out.putShort((short) -1);
+    } else {
+      out.putShort((short) user.length);
+      out.put(user);
+    }
+    out.putLong(lastWriteMillis);
+    if (encodedItineraries != null) {
+      out.put(encodedItineraries.duplicate());
+    } else if (itineraries == null) {
+      out.putInt(-1);
+    } else {
+      out.putInt(itineraries.size());
+      for (Itinerary itinerary : itineraries) {
+        out.putInt(itinerary.fid1);
+        out.putInt(itinerary.fid2);
+        out.putInt(itinerary.totalTime);
+      }
+    }
+    return out.array();
+  }
+
+  public static SessionState decode(byte[] bytes) {
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    if (in.get() != VERSION) {
+      throw new IllegalArgumentException("unknown session state version");
+    }
+    SessionState state = new SessionState();
+    short userLength = in.getShort();
+    if (userLength >= 0) {
+      state.username = new String(bytes, in.position(), userLength, StandardCharsets.UTF_8);
+      in.position(in.position() + userLength);
+    }
+    state.lastWriteMillis = in.getLong();
+    state.encodedItineraries = in.slice();
+    return state;
+  }
+}
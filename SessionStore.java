@@ -0,0 +1,18 @@
+import java.io.IOException;
+
+/**
+ * Keeps session state between commands, keyed by session token, so a session
+ * is not tied to the Query instance (or the server) that started it.
+ */
+public interface SessionStore
+{
+  // the stored state, or null if the token has none
+  SessionState load(String token) throws IOException;
+
+  void save(String token, SessionState state) throws IOException;
+
+  void remove(String token) throws IOException;
+
+  // true if other processes see what this store saves
+  boolean isShared();
+}
@@ -0,0 +1,105 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+/**
+ * One database node holding a partition of UserInfo and Reserve, and
+ * optionally a read replica of it. Statements are prepared on first use and
+ * kept for the life of the connection.
+ */
+public class Shard
+{
+  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+  private static final String BEGIN_SNAPSHOT_SQL = "SET TRANSACTION ISOLATION LEVEL SNAPSHOT; BEGIN TRANSACTION;";
+  private static final String REPLICATED_AT = "SELECT replicated_at FROM ReplicaHeartbeat WHERE id = 0";
+
+  private final int index;
+  private final Connection conn;
+  private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+  private Shard replica;
+  private ConnectionPool pool;
+
+  public Shard(int index, Connection conn)
+  {
+    this.index = index;
+    this.conn = conn;
+  }
+
+  public int index() {
+    return index;
+  }
+
+  public Connection connection() {
+    return conn;
+  }
+
+  // read-only copy of this shard, or null if it has none
+  public Shard replica() {
+    return replica;
+  }
+
+  public void setReplica(Shard replica) {
+    this.replica = replica;
+  }
+
+  // more connections to the same database for reads that run in parallel, or null
+  public ConnectionPool pool() {
+    return pool;
+  }
+
+  public void setPool(ConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  // prepared statement for the given sql, parameters cleared
+  public PreparedStatement statement(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = conn.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+    statement.clearParameters();
+    return statement;
+  }
+
+  public void beginTransaction() throws SQLException {
+    conn.setAutoCommit(false);
+    statement(BEGIN_TRANSACTION_SQL).executeUpdate();
+  }
+
+  public void commitTransaction() throws SQLException {
+    statement(COMMIT_SQL).executeUpdate();
+    conn.setAutoCommit(true);
+  }
+
+  public void rollbackTransaction() throws SQLException {
+    statement(ROLLBACK_SQL).executeUpdate();
+    conn.setAutoCommit(true);
+  }
+
+  // begin a read-only snapshot transaction, used on replicas
+  public void beginSnapshotTransaction() throws SQLException {
+    conn.setAutoCommit(false);
+    statement(BEGIN_SNAPSHOT_SQL).executeUpdate();
+  }
+
+  // when the replica last copied the primary, in epoch millis; read inside a
+  // snapshot transaction it dates the data the transaction sees
+  public long replicatedAt() throws SQLException {
+    ResultSet result = statement(REPLICATED_AT).executeQuery();
+    long replicatedAt = result.next() ? result.getLong("replicated_at") : 0;
+    result.close();
+    return replicatedAt;
+  }
+
+  public void close() throws SQLException {
+    if (replica != null) {
+      replica.close();
+    }
+    conn.close();
+  }
+}
@@ -0,0 +1,103 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Picks the shard for each UserInfo / Reserve operation.
+ *
+ * Reservations are partitioned by the day of month of their flights, so every
+ * check a booking needs (same-day conflict, seats left) stays on one shard.
+ * Users are partitioned by a hash of their lower-cased username, since
+ * usernames compare case-insensitively. Shard 0 is the home shard: it holds
+ * the Flights table and the reservation id counter.
+ */
+public class ShardRouter
+{
+  // scatter-gather and parallel read workers, shared by every session in this JVM
+  private static final ExecutorService scatterPool = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "shard-scatter");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Work to run against a single shard. */
+  public interface Task<T>
+  {
+    T run(Shard shard) throws SQLException;
+  }
+
+  private final List<Shard> shards;
+
+  public ShardRouter(List<Shard> shards)
+  {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("at least one shard is required");
+    }
+    this.shards = new ArrayList<Shard>(shards);
+  }
+
+  public static ExecutorService workers() {
+    return scatterPool;
+  }
+
+  public int size() {
+    return shards.size();
+  }
+
+  public Shard home() {
+    return shards.get(0);
+  }
+
+  public List<Shard> all() {
+    return shards;
+  }
+
+  public Shard forDay(int dayOfMonth) {
+    return shards.get(Math.floorMod(dayOfMonth, shards.size()));
+  }
+
+  public Shard forUser(String username) {
+    return shards.get(Math.floorMod(username.toLowerCase(Locale.ROOT).hashCode(), shards.size()));
+  }
+
+  // run the task on every shard at once and return the results in shard order
+  public <T> List<T> scatter(final Task<T> task) throws SQLException {
+    List<T> results = new ArrayList<T>(shards.size());
+    if (shards.size() == 1) {
+      results.add(task.run(home()));
+      return results;
+    }
+    List<Future<T>> pending = new ArrayList<Future<T>>(shards.size());
+    for (final Shard shard : shards) {
+      pending.add(scatterPool.submit(() -> task.run(shard)));
+    }
+    SQLException failure = null;
+    for (Future<T> future : pending) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("interrupted during scatter-gather", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return results;
+  }
+
+  public void close() throws SQLException {
+    for (Shard shard : shards) {
+      shard.close();
+    }
+  }
+}
@@ -4,10 +4,6 @@ CREATE TABLE UserInfo (username varchar(20) primary key,
                    password varchar(20),
                    balance int);
 
-CREATE TABLE Itineraries (flight_1 int,
-                          flight_2 int,
-                          total_time int);
-
 CREATE TABLE Reserve (reserve_id int primary key,
                       username varchar(20),
                       fid1 int,
@@ -16,3 +12,29 @@ CREATE TABLE Reserve (reserve_id int primary key,
                       paid int,
                       next_id int);
 INSERT INTO Reserve (reserve_id, next_id) VALUES (0, 1);
+
+-- Row 0 of Reserve is the reservation id counter. Databases created before the
+-- counter was kept there can be brought up to date with:
+-- UPDATE Reserve SET next_id = (SELECT MAX(next_id) FROM Reserve) WHERE reserve_id = 0;
+--
+-- When reservations are sharded (flightservice.shards > 1) run the UserInfo and
+-- Reserve statements on every shard. Only shard 0 needs the counter row.
+
+-- Last reservation journal record applied to this database (flightservice.journal).
+-- Needed on every shard.
+CREATE TABLE JournalState (id int primary key,
+                           applied_lsn bigint);
+INSERT INTO JournalState (id, applied_lsn) VALUES (0, 0);
+
+-- Read replicas (flightservice.replica.url) need these on the replica database:
+-- the time its data was copied from the primary, and snapshot isolation for reads.
+-- ALTER DATABASE <replica database> SET ALLOW_SNAPSHOT_ISOLATION ON;
+CREATE TABLE ReplicaHeartbeat (id int primary key,
+                               replicated_at bigint);
+INSERT INTO ReplicaHeartbeat (id, replicated_at) VALUES (0, 0);
+
+-- Changed Flights rows are applied to the in-process flight cache incrementally
+-- (flightservice.flights.refresh_ms) by polling this column, which SQL Server
+-- bumps on every insert and update of the row.
+ALTER TABLE Flights ADD row_version rowversion;
+CREATE INDEX Flights_row_version ON Flights (row_version);